@@ -0,0 +1,131 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end conversions through ConversionService.convertFile, the same call a worker makes, for every
+// target format and every synthetic clip. One operation is one whole conversion. Besides the operations per
+// second, the counters give frames/s, MB/s of input and media seconds converted per second (the speed factor);
+// the gc profiler adds the allocation rate.
+//
+// Parallel segments and the result cache are off, so the numbers are for the single-threaded decode/encode loop.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"AV_360P_10S", "AV_720P_60S", "AUDIO_10S", "AUDIO_60S"})
+    public SyntheticClip clip;
+
+    @Param({"mp4", "mp3", "ogg", "wav"})
+    public String format;
+
+    @Param({"balanced"})
+    public String profile;
+
+    private ProgressService progressService;
+    private ConversionService conversionService;
+    private EncodingProfile encodingProfile;
+    private File source;
+    private long sourceBytes;
+
+    private File input;
+    private String jobId;
+
+    // JMH reports each of these as a rate per second next to the score.
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frames;
+        public double megabytes;
+        public double mediaSeconds;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            megabytes = 0;
+            mediaSeconds = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Outputs and cache entries go somewhere disposable.
+        Path home = Files.createTempDirectory("jmh-home");
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        progressService = new ProgressService(new InMemoryJobStore(), registry, Duration.ofHours(1), Duration.ofHours(6), 10_000);
+        ConversionCache cache = new ConversionCache(home.resolve("cache").toString(), 0, false);
+        SegmentedTranscoder segmentedTranscoder =
+                new SegmentedTranscoder(progressService, false, Duration.ofMinutes(10), 0);
+        conversionService = new ConversionService(progressService, cache, segmentedTranscoder,
+                new ConversionMetrics(registry), new OutputStore(home.resolve("outputs").toString()));
+
+        encodingProfile = EncodingProfile.fromName(profile);
+        source = clip.file();
+        sourceBytes = source.length();
+    }
+
+    // convertFile deletes its input when it's done, just like it does with an upload, so every run gets a copy.
+    @Setup(Level.Invocation)
+    public void prepareInput() throws Exception {
+        input = File.createTempFile("jmh-input-", "-" + source.getName());
+        Files.copy(source.toPath(), input.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        jobId = UUID.randomUUID().toString();
+        progressService.createJob(jobId, ProgressService.SOURCE_UPLOAD);
+        progressService.setJobFileName(jobId, jobId);
+    }
+
+    @Benchmark
+    public void convert(Counters counters) {
+        conversionService.convertFile(input,
+                List.of(new ConversionTarget(format, jobId, null, encodingProfile, false)));
+
+        // A failed conversion is usually quick, so it must not count as a fast one.
+        ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+        if (job.getState() != JobState.DONE) {
+            throw new IllegalStateException("Conversion of " + clip + " to " + format + " ended as " + job.getState());
+        }
+
+        counters.frames += clip.videoFrames();
+        counters.megabytes += sourceBytes / 1_000_000.0;
+        counters.mediaSeconds += clip.seconds();
+    }
+
+    // Nothing follows the progress events here, so I drain them along with the job and its output.
+    @TearDown(Level.Invocation)
+    public void removeJob() throws Exception {
+        String output = progressService.getJobStatus(jobId).getFilePath();
+        if (output != null) {
+            Files.deleteIfExists(Path.of(output));
+        }
+        progressService.removeJob(jobId);
+        progressService.drainChangedJobs();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// The bookkeeping the conversion loops do for every frame, measured without the decoding and encoding around it:
+// working out the percentage, reporting it to the ProgressService, and checking for cancellation.
+// One operation is one frame. "jobs" is how many jobs the ProgressService is tracking, since reporting
+// and the by-ID cancellation check both look the job up in its map.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressHotLoopBenchmark {
+
+    // A 10-minute video at 25 fps: 15,000 frames, so the percentage changes every 150 frames.
+    private static final long TOTAL_DURATION = 600_000_000L;
+    private static final long FRAME_DURATION = 40_000L;
+
+    @Param({"1", "10000"})
+    public int jobs;
+
+    private ProgressService progressService;
+    private ProgressService.JobStatus job;
+    private String jobId;
+
+    private long timestamp;
+    private int lastReportedProgress;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        progressService = new ProgressService(new InMemoryJobStore(), new SimpleMeterRegistry(), Duration.ofHours(1), Duration.ofHours(6), jobs + 1);
+        for (int i = 0; i < jobs; i++) {
+            jobId = UUID.randomUUID().toString();
+            progressService.createJob(jobId, ProgressService.SOURCE_UPLOAD);
+        }
+        progressService.setJobState(jobId, JobState.CONVERTING);
+        job = progressService.getJobStatus(jobId);
+    }
+
+    // The video loops around, like a new job starting, so the percentage keeps changing at the normal rate.
+    // The job's own progress stays at 99 after the first pass (it never goes backwards),
+    // which still costs the lookup and the compare-and-set, just like a real update.
+    private long nextTimestamp() {
+        timestamp += FRAME_DURATION;
+        if (timestamp > TOTAL_DURATION) {
+            timestamp = 0;
+            lastReportedProgress = 0;
+        }
+        return timestamp;
+    }
+
+    // The percentage on its own, as the loops work it out.
+    @Benchmark
+    public int computeProgress() {
+        return (int) (((double) nextTimestamp() / TOTAL_DURATION) * 100);
+    }
+
+    // What the loops do: only report when the percentage has gone up.
+    @Benchmark
+    public int reportWhenChanged() {
+        int progress = (int) (((double) nextTimestamp() / TOTAL_DURATION) * 100);
+        if (progress > lastReportedProgress) {
+            lastReportedProgress = progress;
+            progressService.setProgress(jobId, Math.min(progress, 99));
+        }
+        return progress;
+    }
+
+    // For comparison: a map lookup and a progress update on every single frame.
+    @Benchmark
+    public int reportEveryFrame() {
+        int progress = (int) (((double) nextTimestamp() / TOTAL_DURATION) * 100);
+        progressService.setProgress(jobId, Math.min(progress, 99));
+        return progress;
+    }
+
+    // The cancellation check the loops use, on a JobStatus looked up once before the loop.
+    @Benchmark
+    public boolean cancelledCheckOnStatus() {
+        return job.isCancelled();
+    }
+
+    // For comparison: looking the job up by its ID every frame.
+    @Benchmark
+    public boolean cancelledCheckById() {
+        return progressService.isCancelled(jobId);
+    }
+}
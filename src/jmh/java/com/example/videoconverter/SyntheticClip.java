@@ -0,0 +1,108 @@
+package com.example.videoconverter;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// The test media for the benchmarks, generated locally with FFmpegFrameRecorder so nothing has to be downloaded
+// and every run converts exactly the same input. The video is MPEG-4 Part 2 and the audio AAC, so no target
+// format can take the remux shortcut: every benchmark measures a real decode and encode.
+public enum SyntheticClip {
+
+    AV_360P_10S(640, 360, 10),
+    AV_720P_60S(1280, 720, 60),
+    AUDIO_10S(0, 0, 10),
+    AUDIO_60S(0, 0, 60);
+
+    static final int FRAME_RATE = 25;
+    static final int SAMPLE_RATE = 44_100;
+
+    // Generated clips are kept here between runs, since making the long ones takes a while.
+    private static final Path CLIP_DIR = Path.of("target", "jmh-clips");
+
+    private final int width;
+    private final int height;
+    private final int seconds;
+
+    SyntheticClip(int width, int height, int seconds) {
+        this.width = width;
+        this.height = height;
+        this.seconds = seconds;
+    }
+
+    public boolean hasVideo() {
+        return width > 0;
+    }
+
+    public int seconds() {
+        return seconds;
+    }
+
+    public int videoFrames() {
+        return hasVideo() ? seconds * FRAME_RATE : 0;
+    }
+
+    // Returns the clip, generating it first if this is the first run.
+    public synchronized File file() throws Exception {
+        File file = CLIP_DIR.resolve(name().toLowerCase() + (hasVideo() ? ".mkv" : ".m4a")).toFile();
+        if (!file.exists()) {
+            Files.createDirectories(CLIP_DIR);
+            File partial = new File(file.getPath() + ".part");
+            generate(partial);
+            Files.move(partial.toPath(), file.toPath());
+        }
+        return file;
+    }
+
+    // The picture is a moving pattern with some noise, so the encoder has real motion and detail to work on
+    // instead of a flat frame it can skip. The sound is a sine tone.
+    private void generate(File output) throws Exception {
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output, width, height, 2)) {
+            recorder.setFormat(hasVideo() ? "matroska" : "ipod");
+            if (hasVideo()) {
+                recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+                recorder.setVideoBitrate(width * height * 4);
+                recorder.setGopSize(FRAME_RATE * 2);
+                recorder.setFrameRate(FRAME_RATE);
+            }
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+            recorder.setSampleRate(SAMPLE_RATE);
+            recorder.start();
+
+            Frame picture = hasVideo() ? new Frame(width, height, Frame.DEPTH_UBYTE, 3) : null;
+            ShortBuffer samples = ShortBuffer.allocate(SAMPLE_RATE / FRAME_RATE * 2);
+            Random noise = new Random(42);
+
+            for (int i = 0; i < seconds * FRAME_RATE; i++) {
+                if (picture != null) {
+                    ByteBuffer pixels = (ByteBuffer) picture.image[0];
+                    int stride = picture.imageStride;
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            int offset = y * stride + x * 3;
+                            int value = (int) (128 + 60 * Math.sin((x + i * 4) * 0.03) + 40 * Math.cos((y - i * 2) * 0.05));
+                            pixels.put(offset, (byte) value);
+                            pixels.put(offset + 1, (byte) (value ^ x));
+                            pixels.put(offset + 2, (byte) (noise.nextInt(16) + y));
+                        }
+                    }
+                    recorder.record(picture);
+                }
+
+                samples.clear();
+                for (int j = 0; j < samples.capacity(); j++) {
+                    double t = (double) (i * samples.capacity() / 2 + j / 2) / SAMPLE_RATE;
+                    samples.put(j, (short) (Math.sin(2 * Math.PI * 440 * t) * 8000));
+                }
+                recorder.recordSamples(SAMPLE_RATE, 2, samples);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.videoconverter;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.Map;
+
+// This class turns exceptions from any of my controllers into proper JSON error responses,
+// so each controller doesn't need its own try/catch for them.
+@RestControllerAdvice
+public class ApiExceptionHandler {
+
+    // When the queue is full I answer with 429 Too Many Requests, plus where the job would have been
+    // in the queue and a Retry-After header so the client knows when to try again.
+    @ExceptionHandler(QueueFullException.class)
+    public ResponseEntity<Map<String, Object>> handleQueueFull(QueueFullException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header("Retry-After", String.valueOf(e.getRetryAfterSeconds()))
+                .body(Map.of(
+                        "error", e.getMessage(),
+                        "queuePosition", e.getQueuePosition(),
+                        "retryAfterSeconds", e.getRetryAfterSeconds()
+                ));
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.videoconverter;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Responses that stay open for as long as a conversion runs, like /stream/{jobId}, are written asynchronously,
+// so they don't hold one of Tomcat's request threads while they wait for the converter.
+// Spring MVC runs them on this executor. I give every response its own virtual thread: they spend nearly all their
+// time sleeping between polls, and a small pool of platform threads would let a few slow conversions hold up
+// every other stream.
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Duration timeout;
+
+    public AsyncConfig(@Value("${converter.stream.timeout:6h}") Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(new TaskExecutorAdapter(virtualThreads));
+        // The container's default of 30 seconds would cut off nearly every stream.
+        configurer.setDefaultTimeout(timeout.toMillis());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        virtualThreads.shutdownNow();
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.videoconverter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+// This controller converts many inputs to one format in one request: a playlist, a list of video links,
+// several uploaded files, or any mix of them. See BatchService for how the items are run.
+@RestController
+@RequestMapping("/batch")
+public class BatchController {
+
+    private final BatchService batchService;
+    private final YoutubeService youtubeService;
+    private final ConversionScheduler conversionScheduler;
+    private final ConversionMetrics metrics;
+    private final int maxItems;
+
+    public BatchController(BatchService batchService,
+                           YoutubeService youtubeService,
+                           ConversionScheduler conversionScheduler,
+                           ConversionMetrics metrics,
+                           @Value("${converter.batch.max-items:100}") int maxItems) {
+        this.batchService = batchService;
+        this.youtubeService = youtubeService;
+        this.conversionScheduler = conversionScheduler;
+        this.metrics = metrics;
+        this.maxItems = maxItems;
+    }
+
+    // "playlist" is expanded into its videos with one yt-dlp call, "url" (repeatable) adds single videos, and
+    // "file" (repeatable) adds uploads. The response lists a jobId per item right away; the overall progress is
+    // at /batch/{batchId}, each item's at /progress/{jobId}, and everything as one ZIP at /batch/{batchId}/zip.
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> startBatch(
+            @RequestParam(value = "playlist", required = false) String playlistUrl,
+            @RequestParam(value = "url", required = false) List<String> urls,
+            @RequestParam(value = "file", required = false) List<MultipartFile> files,
+            @RequestParam("format") String format,
+            @RequestParam(value = "profile", required = false) String profileName) throws IOException {
+
+        format = format.trim().toLowerCase();
+        if (!ConvertController.ALLOWED_FORMATS.contains(format)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported format: " + format));
+        }
+        EncodingProfile requestedProfile = EncodingProfile.fromName(profileName);
+        if (requestedProfile == null && profileName != null && !profileName.isBlank()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported profile: " + profileName));
+        }
+
+        List<String> videoUrls = urls != null ? urls.stream().filter(url -> !url.isBlank()).toList() : List.of();
+        List<MultipartFile> uploads =
+                files != null ? files.stream().filter(file -> !file.isEmpty()).toList() : List.of();
+        boolean hasPlaylist = playlistUrl != null && !playlistUrl.isBlank();
+        int room = maxItems - videoUrls.size() - uploads.size();
+        if (room < 0 || (hasPlaylist && room == 0)) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "A batch can have at most " + maxItems + " items."));
+        }
+
+        String name = "batch";
+        List<BatchService.Item> items = new ArrayList<>();
+        if (hasPlaylist) {
+            // A playlist longer than the room that's left is cut off there.
+            YoutubeService.Playlist playlist;
+            try {
+                playlist = youtubeService.expandPlaylist(playlistUrl, room);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ResponseEntity.badRequest().body(Map.of("error", "Could not read the playlist."));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading the playlist");
+            }
+            name = playlist.title();
+            for (YoutubeService.PlaylistEntry entry : playlist.entries()) {
+                items.add(BatchService.Item.forUrl(entry.url(), entry.title()));
+            }
+        }
+        for (String url : videoUrls) {
+            // The real title arrives once yt-dlp has looked the video up, just like for a single video.
+            items.add(BatchService.Item.forUrl(url, "youtube-video"));
+        }
+        if (items.isEmpty() && uploads.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Nothing to convert."));
+        }
+
+        // Unlike the single-file endpoint, a batch never gets a 429 when the queue is full: its items wait for room
+        // in the queue instead (see BatchService).
+        try {
+            for (MultipartFile file : uploads) {
+                String originalName = file.getOriginalFilename() != null ? file.getOriginalFilename() : "upload";
+                long uploadStart = System.nanoTime();
+                File tempInputFile = File.createTempFile("input-" + UUID.randomUUID(), "-" + originalName);
+                String sourceKey;
+                try (InputStream in = file.getInputStream()) {
+                    sourceKey = ConvertController.saveAndHash(in, tempInputFile);
+                } catch (IOException | RuntimeException e) {
+                    metrics.recordFailure(ConversionMetrics.STAGE_UPLOAD, format, ProgressService.SOURCE_UPLOAD, e);
+                    tempInputFile.delete();
+                    throw e;
+                }
+                metrics.recordStage(ConversionMetrics.STAGE_UPLOAD, format, ProgressService.SOURCE_UPLOAD, uploadStart);
+                items.add(BatchService.Item.forFile(
+                        tempInputFile, sourceKey, ConvertController.baseFileName(originalName)));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Nothing has been handed to the BatchService yet, so the uploads saved so far are mine to delete.
+            items.stream().map(BatchService.Item::file).filter(Objects::nonNull).forEach(File::delete);
+            throw e;
+        }
+
+        EncodingProfile profile = conversionScheduler.chooseProfile(requestedProfile);
+        String batchId = batchService.start(name, format, profile, items);
+
+        List<Map<String, Object>> jobs = items.stream()
+                .map(item -> Map.<String, Object>of("jobId", item.jobId(), "name", item.name()))
+                .toList();
+        return ResponseEntity.ok(Map.of(
+                "batchId", batchId,
+                "name", name,
+                "total", items.size(),
+                "profile", profile.label(),
+                "zipUrl", "/batch/" + batchId + "/zip",
+                "jobs", jobs));
+    }
+
+    @GetMapping("/{batchId}")
+    public ResponseEntity<Map<String, Object>> getBatch(@PathVariable String batchId) {
+        BatchService.Batch batch = batchService.getBatch(batchId);
+        if (batch == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(batchService.snapshot(batchId, batch));
+    }
+
+    // The ZIP is streamed while the batch is still running, so this response stays open until the last item ends.
+    // Like /stream/{jobId}, it's written on the async executor (see AsyncConfig), not on a request thread.
+    @GetMapping("/{batchId}/zip")
+    public ResponseEntity<StreamingResponseBody> downloadZip(@PathVariable String batchId) {
+        BatchService.Batch batch = batchService.getBatch(batchId);
+        if (batch == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        RangeDownloadService.contentDisposition(ContentDisposition.attachment(), batch.getName() + ".zip"))
+                .body(out -> {
+                    try {
+                        batchService.writeZip(batch, out);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while writing the ZIP for " + batchId);
+                    }
+                });
+    }
+
+    // Cancels every item of the batch that hasn't finished yet.
+    @DeleteMapping("/{batchId}")
+    public ResponseEntity<Void> cancelBatch(@PathVariable String batchId) {
+        BatchService.Batch batch = batchService.getBatch(batchId);
+        if (batch == null) {
+            return ResponseEntity.notFound().build();
+        }
+        batchService.cancel(batch);
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.videoconverter;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// A batch is many conversions to one format that belong together, like a whole playlist. Every item is an ordinary
+// job (its own jobId, progress and download link); the batch adds the aggregate progress and one ZIP of everything.
+// Each item runs on its own virtual thread, but only a few at a time (converter.batch.concurrency), so a
+// 50-track playlist doesn't start 50 yt-dlp downloads at once or flood the scheduler's queue.
+@Service
+public class BatchService {
+
+    // How often a running item checks whether its job has ended.
+    private static final long JOB_POLL_MILLIS = 250;
+
+    private final ConversionScheduler conversionScheduler;
+    private final ConversionService conversionService;
+    private final ProgressService progressService;
+    private final YoutubeService youtubeService;
+    private final int concurrency;
+    private final long ttlMillis;
+
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    public BatchService(ConversionScheduler conversionScheduler,
+                        ConversionService conversionService,
+                        ProgressService progressService,
+                        YoutubeService youtubeService,
+                        @Value("${converter.batch.concurrency:2}") int concurrency,
+                        @Value("${converter.jobs.ttl:1h}") Duration ttl) {
+        this.conversionScheduler = conversionScheduler;
+        this.conversionService = conversionService;
+        this.progressService = progressService;
+        this.youtubeService = youtubeService;
+        this.concurrency = concurrency;
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    // One thing to convert: a video link, or an upload that has been saved to a temp file (with its content hash).
+    public record Item(String jobId, String name, String url, File file, String sourceKey) {
+
+        public static Item forUrl(String url, String name) {
+            return new Item(UUID.randomUUID().toString(), name, url, null, null);
+        }
+
+        public static Item forFile(File file, String sourceKey, String name) {
+            return new Item(UUID.randomUUID().toString(), name, null, file, sourceKey);
+        }
+    }
+
+    // This creates a job for every item straight away, so they all have a jobId to return, and then starts them.
+    public String start(String name, String format, EncodingProfile profile, List<Item> items) {
+        String batchId = UUID.randomUUID().toString();
+        Batch batch = new Batch(name, format, profile, items, concurrency);
+        for (Item item : items) {
+            progressService.createJob(item.jobId(),
+                    item.url() != null ? ProgressService.SOURCE_YOUTUBE : ProgressService.SOURCE_UPLOAD);
+            progressService.setJobFileName(item.jobId(), item.name());
+        }
+        batches.put(batchId, batch);
+        for (Item item : items) {
+            virtualThreads.submit(() -> runItem(batch, item));
+        }
+        return batchId;
+    }
+
+    public Batch getBatch(String batchId) {
+        return batches.get(batchId);
+    }
+
+    // Cancels every item that hasn't finished. Items still waiting for their turn never start.
+    public void cancel(Batch batch) {
+        for (Item item : batch.items) {
+            conversionScheduler.cancel(item.jobId());
+        }
+    }
+
+    // An item holds one of the batch's permits from the start of its download until its job has ended.
+    private void runItem(Batch batch, Item item) {
+        try {
+            batch.permits.acquire();
+            try {
+                // A batch waits for room in the queue instead of having its items rejected with a 429 like a single
+                // request: here, so a download doesn't start while the queue is full, and again when it's submitted.
+                if (!progressService.isCancelled(item.jobId())
+                        && conversionScheduler.awaitCapacity(List.of(item.jobId()))) {
+                    if (item.url() != null) {
+                        youtubeService.runJob(item.url(), List.of(target(batch, item)), true);
+                    } else {
+                        convertFile(batch, item);
+                    }
+                    awaitEnd(item.jobId());
+                }
+            } finally {
+                batch.permits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The scheduler deletes an input once it's been converted; this catches the ones that never got there.
+            if (item.file() != null) {
+                item.file().delete();
+            }
+            batch.itemFinished(item);
+        }
+    }
+
+    private void convertFile(Batch batch, Item item) throws InterruptedException {
+        ConversionTarget target = target(batch, item);
+        try {
+            if (!conversionService.completeFromCache(target.cacheKey(), target.format(), target.jobId())) {
+                conversionScheduler.submitAllWhenRoom(item.file(), List.of(target));
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            progressService.setProgress(item.jobId(), -1);
+        }
+    }
+
+    private ConversionTarget target(Batch batch, Item item) {
+        String sourceKey = item.sourceKey();
+        if (item.url() != null) {
+            String videoId = YoutubeVideoId.extract(item.url());
+            sourceKey = videoId != null ? "youtube:" + videoId : null;
+        }
+        String cacheKey = sourceKey != null
+                ? ConversionCache.cacheKey(sourceKey, batch.format,
+                        ConversionService.encoderSettings(batch.format, batch.profile, false))
+                : null;
+        return new ConversionTarget(batch.format, item.jobId(), cacheKey, batch.profile, false);
+    }
+
+    private void awaitEnd(String jobId) throws InterruptedException {
+        while (true) {
+            ProgressService.JobStatus status = progressService.getJobStatus(jobId);
+            if (status == null || status.getState().isTerminal()) {
+                return;
+            }
+            Thread.sleep(JOB_POLL_MILLIS);
+        }
+    }
+
+    // The overall state of a batch plus the same snapshot for each item that /progress/{jobId} gives.
+    // Finished items (done, failed or cancelled) count as complete in the overall progress.
+    public Map<String, Object> snapshot(String batchId, Batch batch) {
+        List<Map<String, Object>> items = new ArrayList<>();
+        Map<String, Integer> states = new LinkedHashMap<>();
+        int progressSum = 0;
+        for (Item item : batch.items) {
+            ProgressService.JobStatus status = progressService.getJobStatus(item.jobId());
+            if (status == null) {
+                // Evicted already, so it ended long ago.
+                items.add(Map.of("jobId", item.jobId(), "state", "expired"));
+                states.merge("expired", 1, Integer::sum);
+                progressSum += 100;
+                continue;
+            }
+            items.add(ProgressStreamService.snapshot(item.jobId(), status));
+            states.merge(status.getState().label(), 1, Integer::sum);
+            progressSum += status.getState().isTerminal() ? 100 : status.getProgress();
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("batchId", batchId);
+        snapshot.put("name", batch.name);
+        snapshot.put("format", batch.format);
+        snapshot.put("profile", batch.profile.label());
+        snapshot.put("total", batch.items.size());
+        snapshot.put("finished", batch.finishedCount());
+        snapshot.put("progress", batch.items.isEmpty() ? 100 : progressSum / batch.items.size());
+        snapshot.put("states", states);
+        snapshot.put("zipUrl", "/batch/" + batchId + "/zip");
+        snapshot.put("items", items);
+        return snapshot;
+    }
+
+    // This writes the batch as a ZIP, adding each output as soon as its job is done, in the order they finish.
+    // The client starts receiving the first files while the rest are still converting, and the ZIP is never put
+    // together on disk. Items that failed or were cancelled are left out.
+    public void writeZip(Batch batch, OutputStream out) throws IOException, InterruptedException {
+        Set<String> usedNames = new HashSet<>();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            // Audio and video are compressed already, so deflating them again would only cost CPU.
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            Item item;
+            for (int i = 0; (item = batch.awaitFinished(i)) != null; i++) {
+                ProgressService.JobStatus status = progressService.getJobStatus(item.jobId());
+                if (status == null || status.getState() != JobState.DONE) {
+                    continue;
+                }
+                Path file = Path.of(status.getFilePath());
+                zip.putNextEntry(new ZipEntry(uniqueName(status.getFileName(), batch.format, usedNames)));
+                Files.copy(file, zip);
+                zip.closeEntry();
+                zip.flush();
+            }
+        }
+    }
+
+    // Two videos in a playlist can have the same title, but a ZIP can't have two entries with the same name.
+    private static String uniqueName(String baseName, String format, Set<String> usedNames) {
+        String name = baseName + "." + format;
+        for (int n = 2; !usedNames.add(name); n++) {
+            name = baseName + " (" + n + ")." + format;
+        }
+        return name;
+    }
+
+    // Finished batches are forgotten along with their jobs; see ProgressService.evictExpiredJobs.
+    @Scheduled(fixedDelayString = "${converter.jobs.eviction-interval-ms:60000}")
+    public void evictExpiredBatches() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        batches.values().removeIf(batch -> batch.finishedAt > 0 && batch.finishedAt < cutoff);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        virtualThreads.shutdownNow();
+    }
+
+    // The items of a batch and the order they finished in. The finished list is guarded by the batch's monitor,
+    // which the ZIP writer waits on for the next item.
+    public static class Batch {
+        private final String name;
+        private final String format;
+        private final EncodingProfile profile;
+        private final List<Item> items;
+        private final Semaphore permits;
+        private final List<Item> finished = new ArrayList<>();
+        private volatile long finishedAt;
+
+        Batch(String name, String format, EncodingProfile profile, List<Item> items, int concurrency) {
+            this.name = name;
+            this.format = format;
+            this.profile = profile;
+            this.items = List.copyOf(items);
+            this.permits = new Semaphore(Math.max(1, concurrency));
+        }
+
+        synchronized void itemFinished(Item item) {
+            finished.add(item);
+            if (finished.size() == items.size()) {
+                finishedAt = System.currentTimeMillis();
+            }
+            notifyAll();
+        }
+
+        // The index-th item to finish, waiting for it if need be. Returns null once there are no more.
+        synchronized Item awaitFinished(int index) throws InterruptedException {
+            while (index >= finished.size() && finished.size() < items.size()) {
+                wait();
+            }
+            return index < finished.size() ? finished.get(index) : null;
+        }
+
+        synchronized int finishedCount() {
+            return finished.size();
+        }
+
+        public String getName() { return name; }
+    }
+}
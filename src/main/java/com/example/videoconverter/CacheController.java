@@ -0,0 +1,31 @@
+package com.example.videoconverter;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+// A tiny controller so I can see how well the conversion cache is doing.
+@RestController
+public class CacheController {
+
+    private final ConversionCache conversionCache;
+    private final YoutubeMetadataCache metadataCache;
+
+    public CacheController(ConversionCache conversionCache, YoutubeMetadataCache metadataCache) {
+        this.conversionCache = conversionCache;
+        this.metadataCache = metadataCache;
+    }
+
+    // Returns the hit/miss/eviction counters and how much of the byte budget is in use.
+    @GetMapping("/cache/stats")
+    public Map<String, Object> getStats() {
+        return conversionCache.getStats();
+    }
+
+    // The same for the YouTube metadata cache. sharedLookups counts the lookups that waited for an identical one.
+    @GetMapping("/cache/metadata/stats")
+    public Map<String, Object> getMetadataStats() {
+        return metadataCache.getStats();
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.videoconverter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// This service keeps finished conversions around so the same input + format never has to be converted twice.
+// Entries are keyed by a hash of the source (its bytes, or the YouTube video ID), the target format and
+// the encoder settings, and the oldest-used entries are evicted once the cache goes over its byte budget.
+@Service
+public class ConversionCache {
+
+    private final Path cacheDir;
+    private final long maxBytes;
+    private final boolean enabled;
+
+    // A LinkedHashMap in access order gives me LRU ordering for free: the first entry is always the least recently used.
+    // All access goes through synchronized methods, since LinkedHashMap isn't thread-safe.
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ConversionCache(@Value("${converter.cache.dir:${java.io.tmpdir}/video-converter-cache}") String cacheDir,
+                           @Value("${converter.cache.max-bytes:5368709120}") long maxBytes,
+                           @Value("${converter.cache.enabled:true}") boolean enabled) throws IOException {
+        this.cacheDir = Path.of(cacheDir);
+        this.maxBytes = maxBytes;
+        this.enabled = enabled;
+
+        if (enabled) {
+            Files.createDirectories(this.cacheDir);
+            loadExistingEntries();
+        }
+    }
+
+    // This builds the cache key. The source key identifies the input, e.g. "sha256:<hash of the upload>"
+    // or "youtube:<video id>", and the settings describe how the output was encoded.
+    public static String cacheKey(String sourceKey, String format, String encoderSettings) {
+        return sha256Hex((sourceKey + "|" + format.toLowerCase() + "|" + encoderSettings).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the cached output for this key, or null if there isn't one.
+    public Path lookup(String key) {
+        return lookup(key, true);
+    }
+
+    // The worker checks the cache again right before converting, in case an identical job finished while this one
+    // was queued. That second look isn't a new request, so it doesn't count as another miss.
+    public Path recheck(String key) {
+        return lookup(key, false);
+    }
+
+    // A quick check that doesn't count as a hit or a miss, e.g. to decide whether a request needs a worker at all.
+    public synchronized boolean contains(String key) {
+        return enabled && key != null && entries.containsKey(key);
+    }
+
+    private synchronized Path lookup(String key, boolean countMiss) {
+        if (!enabled || key == null) {
+            return null;
+        }
+
+        CachedFile cached = entries.get(key);
+        if (cached == null || !Files.exists(cached.path())) {
+            if (cached != null) {
+                // Someone deleted the file behind my back, so I forget about it.
+                forget(key);
+            }
+            if (countMiss) {
+                misses.incrementAndGet();
+            }
+            return null;
+        }
+
+        // The get above has already moved the entry to the back of the LRU order. I don't touch the file itself:
+        // it's a hard link shared with the outputs of earlier jobs, which mustn't change because of a later one.
+        hits.incrementAndGet();
+        return cached.path();
+    }
+
+    // This adds a finished output to the cache. The cache keeps its own link (or copy) of the file,
+    // so whatever later happens to the job's output file never affects the cached version.
+    public void store(String key, Path output, String format) {
+        if (!enabled || key == null) {
+            return;
+        }
+
+        try {
+            long size = Files.size(output);
+            if (size > maxBytes) {
+                return; // This file alone would blow the whole budget, so it's not worth caching.
+            }
+
+            // Two jobs can finish the same input and format at the same time, so each one gets a temp file of its
+            // own. Whichever moves last wins, and both are the same output anyway.
+            Path target = cacheDir.resolve(key + "." + format);
+            Path temp = Files.createTempFile(cacheDir, key + "." + format + ".", ".tmp");
+            try {
+                linkOrCopy(output, temp);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (contains(key)) {
+                    return; // The other job's copy made it in, which is all I wanted.
+                }
+                throw e;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            synchronized (this) {
+                CachedFile previous = entries.put(key, new CachedFile(target, size));
+                totalBytes += size - (previous != null ? previous.size() : 0);
+                evictIfNeeded();
+            }
+        } catch (IOException e) {
+            // A cache failure should never fail the conversion itself.
+            e.printStackTrace();
+        }
+    }
+
+    // This puts a cached output where a job expects its result, again as a link or copy.
+    public void copyTo(Path cached, Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+        linkOrCopy(cached, destination);
+    }
+
+    public Map<String, Object> getStats() {
+        synchronized (this) {
+            return Map.of(
+                    "enabled", enabled,
+                    "entries", entries.size(),
+                    "bytes", totalBytes,
+                    "maxBytes", maxBytes,
+                    "hits", hits.get(),
+                    "misses", misses.get(),
+                    "evictions", evictions.get()
+            );
+        }
+    }
+
+    // This streams bytes through SHA-256 without keeping them, so I can hash an upload while saving it.
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<CachedFile> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            CachedFile eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.size();
+            deleteQuietly(eldest.path());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void forget(String key) {
+        CachedFile removed = entries.remove(key);
+        if (removed != null) {
+            totalBytes -= removed.size();
+        }
+    }
+
+    // On startup I rebuild the index from whatever is already on disk, oldest first,
+    // so the cache keeps working across restarts. The recency of use isn't kept on disk, so after a restart
+    // the entries start out in the order they were stored.
+    private void loadExistingEntries() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(cacheDir)) {
+            files = stream
+                    .filter(Files::isRegularFile)
+                    .sorted(Comparator.comparing(ConversionCache::lastModified))
+                    .toList();
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                deleteQuietly(file); // A leftover from a store that was interrupted.
+                continue;
+            }
+            int dot = name.indexOf('.');
+            if (dot > 0) {
+                long size = sizeOf(file);
+                entries.put(name.substring(0, dot), new CachedFile(file, size));
+                totalBytes += size;
+            }
+        }
+        evictIfNeeded();
+    }
+
+    // Hard links cost no extra disk space. If they aren't possible (e.g. a different filesystem) I copy instead.
+    static void linkOrCopy(Path source, Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+        try {
+            Files.createLink(destination, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String sha256Hex(byte[] bytes) {
+        return HexFormat.of().formatHex(newDigest().digest(bytes));
+    }
+
+    // I remember each file's size when it's added, so the byte count stays right even if the file disappears.
+    private record CachedFile(Path path, long size) {
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// This records where the time goes in a job, so the slow stage can be found in production.
+// Everything is tagged by target format and by where the input came from, and it all ends up under
+// /actuator/metrics and, for scraping, /actuator/prometheus.
+@Component
+public class ConversionMetrics {
+
+    // The stages a job can go through, in order. Not every job has all of them: an upload has no download,
+    // and a streamed one is converted while it arrives, so it goes straight from the queue to the probe.
+    public static final String STAGE_UPLOAD = "upload";     // saving the upload to a temp file
+    public static final String STAGE_DOWNLOAD = "download"; // yt-dlp fetching the video
+    public static final String STAGE_QUEUE = "queue";       // waiting for a free worker
+    public static final String STAGE_PROBE = "probe";       // grabber.start(): opening the input and reading its streams
+    public static final String STAGE_CONVERT = "convert";   // the remux, transcode or parallel transcode itself
+    public static final String STAGE_FINALIZE = "finalize"; // storing the result in the cache and completing the job
+
+    // Used as the format tag for a stage that several formats share, like the download for a multi-format job.
+    public static final String FORMAT_MULTIPLE = "multiple";
+
+    // Fixed buckets, so the histograms stay small: speed as a multiple of realtime, and frames per second.
+    private static final double[] SPEED_BUCKETS = {0.25, 0.5, 1, 2, 4, 8, 16, 32, 64, 128};
+    private static final double[] FPS_BUCKETS = {5, 10, 25, 50, 100, 200, 400, 800, 1600};
+
+    private final MeterRegistry meterRegistry;
+
+    public ConversionMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    // Records how long a stage took, counting from a System.nanoTime() taken when it started.
+    public void recordStage(String stage, String format, String source, long startNanos) {
+        Timer.builder("converter.stage")
+                .description("Time spent in each stage of a job")
+                .tag("stage", stage)
+                .tag("format", format)
+                .tag("source", tagValue(source))
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofHours(1))
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static String formatTag(List<ConversionTarget> targets) {
+        return targets.size() == 1 ? targets.get(0).format() : FORMAT_MULTIPLE;
+    }
+
+    // After a conversion: how many seconds of media it got through per second of work (above 1 is faster than
+    // realtime), and for video targets, the frames per second. Nothing is recorded if the length isn't known.
+    public void recordThroughput(String format, String source, String mode, long mediaMicros, double frameRate,
+                                 boolean video, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (mediaMicros <= 0 || seconds <= 0) {
+            return;
+        }
+        double mediaSeconds = mediaMicros / 1e6;
+
+        DistributionSummary.builder("converter.speed")
+                .description("Seconds of media converted per second, i.e. how many times faster than realtime")
+                .tag("format", format)
+                .tag("source", tagValue(source))
+                .tag("mode", mode)
+                .serviceLevelObjectives(SPEED_BUCKETS)
+                .register(meterRegistry)
+                .record(mediaSeconds / seconds);
+
+        if (video && frameRate > 0) {
+            DistributionSummary.builder("converter.fps")
+                    .description("Video frames converted per second")
+                    .baseUnit("frames")
+                    .tag("format", format)
+                    .tag("source", tagValue(source))
+                    .tag("mode", mode)
+                    .serviceLevelObjectives(FPS_BUCKETS)
+                    .register(meterRegistry)
+                    .record(mediaSeconds * frameRate / seconds);
+        }
+    }
+
+    // Counts a failed job, with the stage it failed in and the kind of error, instead of only a stack trace.
+    public void recordFailure(String stage, String format, String source, Throwable error) {
+        Counter.builder("converter.failures")
+                .description("Jobs that failed, by the stage they failed in")
+                .tag("stage", stage)
+                .tag("format", format)
+                .tag("source", tagValue(source))
+                .tag("exception", error.getClass().getSimpleName())
+                .register(meterRegistry)
+                .increment();
+    }
+
+    // A job can be evicted while its worker is still finishing, so the source may already be gone.
+    private static String tagValue(String value) {
+        return value != null ? value : "unknown";
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This service decides when conversions actually run.
+// Transcoding is CPU-heavy, so instead of starting every job straight away I run a fixed number of
+// worker threads (one per core by default) and keep everything else waiting in a bounded queue.
+// With a shared job store, that queue is shared by all the instances: whichever has a worker free first takes the
+// next conversion, so one instance can't be swamped while another sits idle.
+@Service
+public class ConversionScheduler {
+
+    // Audio jobs are usually short, so they go ahead of video jobs in the queue.
+    static final int PRIORITY_AUDIO = 0;
+    static final int PRIORITY_VIDEO = 1;
+
+    // How long a caller that waits for room in the queue sleeps between tries; see retryDelayMillis.
+    private static final long MIN_RETRY_MILLIS = 1_000;
+    private static final long MAX_RETRY_MILLIS = 10_000;
+
+    private final ConversionService conversionService;
+    private final ProgressService progressService;
+    private final ConversionMetrics metrics;
+    // The queue the instances share, or null if the job store isn't shared.
+    private final SharedWorkQueue sharedQueue;
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final int workers;
+    private final EncodingProfile defaultProfile;
+    private final int stepDownQueueDepth;
+
+    // I keep the queued tasks by jobId so they can be found again if the user cancels them.
+    // A task that produces several formats is in here once for each of its jobs.
+    private final Map<String, ConversionTask> queuedTasks = new ConcurrentHashMap<>();
+
+    // The tasks handed to the executor that haven't finished yet, waiting or running. While there are fewer of
+    // them than workers, a new task starts straight away. It only changes under this object's lock, so checking for
+    // a free worker and taking it is one step that no other submit can get in between.
+    private int tasksInFlight;
+
+    // This gives every task a ticket number so jobs with the same priority stay in arrival order.
+    private final AtomicLong sequence = new AtomicLong();
+
+    // A rolling average of how long a job takes, which I use to estimate waiting times.
+    private final AtomicLong averageJobMillis = new AtomicLong(30_000);
+
+    public ConversionScheduler(ConversionService conversionService,
+                               ProgressService progressService,
+                               ConversionMetrics metrics,
+                               SegmentedTranscoder segmentedTranscoder,
+                               JobStore jobStore,
+                               MeterRegistry meterRegistry,
+                               @Value("${converter.scheduler.workers:0}") int workers,
+                               @Value("${converter.scheduler.queue-capacity:50}") int queueCapacity,
+                               @Value("${converter.encoding.profile:balanced}") String defaultProfile,
+                               @Value("${converter.encoding.step-down-queue-depth:0}") int stepDownQueueDepth) {
+        this.conversionService = conversionService;
+        this.progressService = progressService;
+        this.metrics = metrics;
+        this.sharedQueue = jobStore.sharedQueue().orElse(null);
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = queueCapacity;
+        this.defaultProfile = EncodingProfile.fromName(defaultProfile);
+        if (this.defaultProfile == null) {
+            throw new IllegalArgumentException("Unknown converter.encoding.profile: " + defaultProfile);
+        }
+        this.stepDownQueueDepth = stepDownQueueDepth;
+        // A long video is only split across the workers that are free when it starts.
+        segmentedTranscoder.useIdleWorkersOf(this::idleWorkers);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                this.workers, this.workers,
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "converter-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        Gauge.builder("converter.queue.depth", this, ConversionScheduler::getQueueDepth)
+                .description("Conversions waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("converter.transcodes.active", this, ConversionScheduler::getActiveCount)
+                .description("Conversions running on a worker right now")
+                .register(meterRegistry);
+    }
+
+    // This puts a job in the queue and returns its estimated position (1 means it's next).
+    // If the queue is already full I throw a QueueFullException, which is turned into a 429 response.
+    public int submit(File input, ConversionTarget target) {
+        return submitAll(input, List.of(target));
+    }
+
+    // The same for a source that should be converted to several formats. It's one task, so the source is only
+    // decoded once, but each format keeps its own job.
+    public int submitAll(File input, List<ConversionTarget> targets) {
+        // A conversion that would have to wait goes to the shared queue instead, if there is one.
+        // This instance may well be the one that picks it up again.
+        if (sharedQueue != null && !hasIdleWorker()) {
+            ensureCapacity();
+            try {
+                return sharedQueue.offer(input, targets, priorityOf(targets));
+            } catch (IOException e) {
+                // The shared queue can't be written, so I queue it here after all.
+                e.printStackTrace();
+            }
+        }
+        return enqueue(targets,
+                () -> conversionService.convertFile(input, targets),
+                () -> deleteQuietly(input));
+    }
+
+    // The same as submitAll, but for callers that would rather wait for room in the queue than get a 429, like
+    // a batch. Room can run out again between a check and the submit, so I keep retrying the submit itself.
+    // If every job is cancelled while it waits, the input is deleted and I return -1.
+    public int submitAllWhenRoom(File input, List<ConversionTarget> targets) throws InterruptedException {
+        List<String> jobIds = targets.stream().map(ConversionTarget::jobId).toList();
+        while (true) {
+            try {
+                return submitAll(input, targets);
+            } catch (QueueFullException e) {
+                if (jobIds.stream().allMatch(progressService::isCancelled)) {
+                    deleteQuietly(input);
+                    return -1;
+                }
+                Thread.sleep(retryDelayMillis(e));
+            }
+        }
+    }
+
+    // Waits until the queue has room, e.g. before a batch item starts a download that will need a worker.
+    // Returns false if every job was cancelled in the meantime.
+    public boolean awaitCapacity(List<String> jobIds) throws InterruptedException {
+        while (true) {
+            try {
+                ensureCapacity();
+                return true;
+            } catch (QueueFullException e) {
+                if (jobIds.stream().allMatch(progressService::isCancelled)) {
+                    return false;
+                }
+                Thread.sleep(retryDelayMillis(e));
+            }
+        }
+    }
+
+    // Takes conversions from the shared queue for as long as this instance has a worker free.
+    // With the in-memory job store there is no shared queue, and this does nothing.
+    @Scheduled(fixedDelayString = "${converter.jobstore.poll-interval-ms:500}")
+    public void claimSharedWork() {
+        if (sharedQueue == null) {
+            return;
+        }
+        try {
+            while (true) {
+                // A stream could take the free worker between the check and the execute, so both happen under the lock.
+                synchronized (this) {
+                    if (!hasIdleWorker()) {
+                        return;
+                    }
+                    SharedWorkQueue.QueuedConversion claimed = sharedQueue.claimNext();
+                    if (claimed == null) {
+                        return;
+                    }
+                    File input = new File(claimed.input());
+                    // The capacity was checked when the conversion was offered, so it isn't checked again here.
+                    execute(claimed.targets(),
+                            () -> conversionService.convertFile(input, claimed.targets()),
+                            () -> deleteQuietly(input));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // This starts a conversion that reads straight from a stream, like an upload that's still arriving.
+    // Streaming only makes sense if a worker picks the job up right away, otherwise the sender would be stuck
+    // waiting. So the worker is taken in the same step as the check, and if none is free I return empty; the caller
+    // then saves the input to a file and queues it normally instead. Nothing waits in the queue, so the queue's
+    // capacity doesn't matter here.
+    // The returned future completes once the job has finished with the stream (or was cancelled before starting),
+    // so the caller knows when it's safe to close the request.
+    public synchronized Optional<CompletableFuture<Void>> trySubmitStream(InputStream input, ConversionTarget target) {
+        if (!hasIdleWorker()) {
+            return Optional.empty();
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        execute(List.of(target),
+                () -> {
+                    try {
+                        conversionService.convertStream(input, target);
+                    } finally {
+                        done.complete(null);
+                    }
+                },
+                () -> done.complete(null));
+        return Optional.of(done);
+    }
+
+    // Whether a task submitted now would start straight away. Callers that only use this as a hint, like the
+    // YoutubeService deciding whether to start a piped download, still go through trySubmitStream in the end.
+    public synchronized boolean hasIdleWorker() {
+        return tasksInFlight < workers;
+    }
+
+    private synchronized int enqueue(List<ConversionTarget> targets, Runnable work, Runnable discard) {
+        ensureCapacity();
+        return execute(targets, work, discard);
+    }
+
+    private synchronized int execute(List<ConversionTarget> targets, Runnable work, Runnable discard) {
+        int priority = priorityOf(targets);
+        List<String> jobIds = targets.stream().map(ConversionTarget::jobId).toList();
+        ConversionTask task = new ConversionTask(jobIds, priority, sequence.incrementAndGet(), work, discard,
+                ConversionMetrics.formatTag(targets), progressService.getJobSource(jobIds.get(0)));
+
+        for (String jobId : jobIds) {
+            queuedTasks.put(jobId, task);
+        }
+        tasksInFlight++;
+        executor.execute(task);
+        return positionOf(task);
+    }
+
+    // The workers that nothing has been handed to. Tasks waiting in the executor's queue count as taken.
+    synchronized int idleWorkers() {
+        return Math.max(0, workers - tasksInFlight);
+    }
+
+    private synchronized void taskFinished() {
+        tasksInFlight--;
+    }
+
+    // A task is only as quick as its slowest output, so one video format makes the whole task a video job.
+    private static int priorityOf(List<ConversionTarget> targets) {
+        boolean audioOnly = targets.stream().allMatch(target -> ConversionService.isAudioFormat(target.format()));
+        return audioOnly ? PRIORITY_AUDIO : PRIORITY_VIDEO;
+    }
+
+    // This picks the encoding profile for a new job. A profile the user asked for is used as it is. Otherwise it's
+    // the configured default, one step faster for every step-down-queue-depth jobs waiting, so a backlog clears
+    // sooner when the server is busy. It's decided up front because the profile is part of the cache key.
+    public EncodingProfile chooseProfile(EncodingProfile requested) {
+        if (requested != null) {
+            return requested;
+        }
+        EncodingProfile profile = defaultProfile;
+        if (stepDownQueueDepth > 0) {
+            for (int steps = waitingCount() / stepDownQueueDepth; steps > 0; steps--) {
+                profile = profile.faster();
+            }
+        }
+        return profile;
+    }
+
+    // The YoutubeController calls this before downloading anything, so a busy server
+    // rejects the request up front instead of after a long download.
+    public void ensureCapacity() {
+        int queued = waitingCount();
+        if (queued >= queueCapacity) {
+            throw new QueueFullException(queued + 1, estimateWaitSeconds(queued + 1));
+        }
+    }
+
+    // This cancels a job whether it's still waiting or already converting.
+    // It returns false if the job doesn't exist or has already finished.
+    public boolean cancel(String jobId) {
+        boolean cancelled = progressService.cancelJob(jobId);
+
+        // If the task hasn't started and none of its other formats are still wanted, it never needs to run,
+        // so I take it out of the queue and clean up its input here.
+        ConversionTask task = queuedTasks.get(jobId);
+        if (task != null && task.allCancelled() && executor.remove(task)) {
+            task.jobIds.forEach(queuedTasks::remove);
+            taskFinished();
+            task.discard.run();
+        }
+
+        // Otherwise setting the flag is enough: a running task stops writing this format at the next frame,
+        // and a queued one skips it when it starts.
+        return cancelled;
+    }
+
+    // Only this instance's queue, so the gauges of several instances add up; the shared queue is counted below.
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    // Everything waiting for a worker, including the shared queue.
+    private int waitingCount() {
+        return executor.getQueue().size() + (sharedQueue != null ? sharedQueue.queuedCount() : 0);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    // The Retry-After estimate is 0 when jobs are quick, and every try lists the shared queue, so I wait at least
+    // a second. The estimate is rough and the queue may drain well before it, so I don't wait more than ten.
+    private static long retryDelayMillis(QueueFullException e) {
+        return Math.clamp(e.getRetryAfterSeconds() * 1000L, MIN_RETRY_MILLIS, MAX_RETRY_MILLIS);
+    }
+
+    // A rough guess at the wait: how many jobs are ahead, split across the workers, times the average job time.
+    long estimateWaitSeconds(int position) {
+        double rounds = Math.ceil((double) position / workers);
+        return (long) (rounds * averageJobMillis.get() / 1000);
+    }
+
+    private int positionOf(ConversionTask task) {
+        int ahead = 0;
+        for (ConversionTask queued : Set.copyOf(queuedTasks.values())) {
+            if (queued.compareTo(task) < 0) {
+                ahead++;
+            }
+        }
+        return ahead + 1;
+    }
+
+    private void recordDuration(long millis) {
+        // A simple moving average, weighted towards recent jobs.
+        averageJobMillis.updateAndGet(previous -> (previous * 4 + millis) / 5);
+    }
+
+    private void deleteQuietly(File file) {
+        try {
+            if (file != null) {
+                Files.deleteIfExists(file.toPath());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // A queued conversion. The PriorityBlockingQueue orders these by priority first, then by arrival.
+    // "work" does the conversion and "discard" cleans up its input if the job is cancelled before it starts.
+    private class ConversionTask implements Runnable, Comparable<ConversionTask> {
+        private final List<String> jobIds;
+        private final int priority;
+        private final long sequenceNumber;
+        private final Runnable work;
+        private final Runnable discard;
+        // For the queue wait metric.
+        private final String format;
+        private final String source;
+        private final long queuedAt = System.nanoTime();
+
+        ConversionTask(List<String> jobIds, int priority, long sequenceNumber, Runnable work, Runnable discard,
+                       String format, String source) {
+            this.jobIds = jobIds;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.work = work;
+            this.discard = discard;
+            this.format = format;
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            try {
+                jobIds.forEach(queuedTasks::remove);
+                metrics.recordStage(ConversionMetrics.STAGE_QUEUE, format, source, queuedAt);
+
+                // The jobs may have been cancelled in the moment between leaving the queue and starting.
+                if (allCancelled()) {
+                    discard.run();
+                    return;
+                }
+
+                long start = System.currentTimeMillis();
+                work.run();
+                recordDuration(System.currentTimeMillis() - start);
+            } finally {
+                taskFinished();
+            }
+        }
+
+        boolean allCancelled() {
+            return jobIds.stream().allMatch(progressService::isCancelled);
+        }
+
+        @Override
+        public int compareTo(ConversionTask other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
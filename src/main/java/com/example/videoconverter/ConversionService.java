@@ -1,119 +1,677 @@
 package com.example.videoconverter;
 
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avutil.AVRational;
 import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_q2d;
 
 // This service handles the core video/audio conversion logic.
 @Service
 public class ConversionService {
 
+    // When reading from a stream, the demuxer may need to jump back a little, e.g. while probing the header
+    // or between interleaved audio and video chunks. This many bytes are kept so those rewinds work without a file.
+    static final int STREAM_REWIND_BYTES = 8 * 1024 * 1024;
+
     private final ProgressService progressService;
+    private final ConversionCache conversionCache;
+    private final SegmentedTranscoder segmentedTranscoder;
+    private final ConversionMetrics metrics;
+    private final OutputStore outputStore;
 
-    public ConversionService(ProgressService progressService) {
+    public ConversionService(ProgressService progressService, ConversionCache conversionCache,
+                             SegmentedTranscoder segmentedTranscoder, ConversionMetrics metrics,
+                             OutputStore outputStore) {
         this.progressService = progressService;
+        this.conversionCache = conversionCache;
+        this.segmentedTranscoder = segmentedTranscoder;
+        this.metrics = metrics;
+        this.outputStore = outputStore;
     }
 
-    // This method runs on a background thread to keep the UI responsive.
-    @Async
-    public void convertFile(File input, String format, String jobId) {
-        File output = null;
+    // This method runs on one of the ConversionScheduler's worker threads to keep the UI responsive.
+    // Each target is one format to produce, with its own job. The cacheKey of a target identifies that exact
+    // input + format + settings combination (it can be null to skip caching).
+    public void convertFile(File input, List<ConversionTarget> targets) {
         try {
-            // This saves the final file to the user's Downloads folder.
-            String userHome = System.getProperty("user.home");
-            Path downloadDirPath = Path.of(userHome, "Downloads");
+            List<ConversionTarget> remaining = new ArrayList<>();
+            for (ConversionTarget target : targets) {
+                // An identical job may have finished while this one was waiting in the queue,
+                // and the user may have cancelled some of the formats in the meantime.
+                if (progressService.isCancelled(target.jobId()) || completeFromRecheckedCache(target)) {
+                    continue;
+                }
+                remaining.add(target);
+            }
 
-            // Ensure the Downloads directory exists.
-            if (!Files.exists(downloadDirPath)) {
-                Files.createDirectories(downloadDirPath);
+            if (remaining.size() == 1) {
+                convertSingleFile(input, remaining.get(0));
+            } else if (remaining.size() > 1) {
+                convertMultipleOutputs(input, remaining);
             }
+        } finally {
+            // Delete the temporary input file to keep the system clean.
+            try {
+                if (input != null) {
+                    Files.deleteIfExists(input.toPath());
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            // Get the clean filename from the progress service and create the final path.
-            String finalFileName = progressService.getJobFileName(jobId);
-            output = downloadDirPath.resolve(finalFileName + "." + format).toFile();
+    private boolean completeFromRecheckedCache(ConversionTarget target) {
+        try {
+            Path cached = conversionCache.recheck(target.cacheKey());
+            if (cached == null) {
+                return false;
+            }
+            completeFromCachedFile(cached, target.format(), target.jobId());
+            return true;
+        } catch (IOException e) {
+            // If the cached copy can't be used, I simply convert this format again.
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // One format: this can use every shortcut, like remuxing, parallel segments or the audio-only loop.
+    private void convertSingleFile(File input, ConversionTarget target) {
+        String format = target.format();
+        String jobId = target.jobId();
+        File output = null;
+        try {
+            output = resolveOutputFile(jobId, format);
+
+            // I remove any old file first so the recorder writes a fresh file rather than
+            // truncating one that might be hard-linked into the cache.
+            Files.deleteIfExists(output.toPath());
 
             try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input)) {
-                grabber.start();
-
-                long totalDuration = grabber.getLengthInTime();
-                int lastReportedProgress = 0;
-
-                boolean audioOnly = format.equalsIgnoreCase("mp3")
-                        || format.equalsIgnoreCase("wav")
-                        || format.equalsIgnoreCase("ogg");
-
-                int width = audioOnly ? 0 : grabber.getImageWidth();
-                int height = audioOnly ? 0 : grabber.getImageHeight();
-                int audioChannels = grabber.getAudioChannels();
-
-                try (FFmpegFrameRecorder recorder =
-                             new FFmpegFrameRecorder(output, width, height, audioChannels)) {
-
-                    recorder.setFormat(format);
-                    if (audioOnly) {
-                        if ("wav".equalsIgnoreCase(format)) {
-                            recorder.setAudioCodec(avcodec.AV_CODEC_ID_PCM_S16LE);
-                        } else if ("mp3".equalsIgnoreCase(format)) {
-                            recorder.setAudioCodec(avcodec.AV_CODEC_ID_MP3);
-                        } else if ("ogg".equalsIgnoreCase(format)) {
-                            recorder.setAudioCodec(avcodec.AV_CODEC_ID_VORBIS);
-                        }
-                    } else {
-                        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-                        recorder.setFrameRate(grabber.getFrameRate());
-                        recorder.setVideoBitrate(grabber.getVideoBitrate());
-                    }
-                    recorder.setSampleRate(grabber.getSampleRate());
-                    recorder.start();
-
-                    Frame frame;
-                    while ((frame = grabber.grab()) != null) {
-                        if (audioOnly) {
-                            if (frame.samples != null) {
-                                recorder.recordSamples(frame.sampleRate, frame.audioChannels, frame.samples);
-                            }
-                        } else {
-                            recorder.record(frame);
-                        }
+                convert(grabber, input, output, target);
+            }
+            // I keep a copy in the cache before handing the file over, so the next identical request is instant.
+            long finalizeStart = System.nanoTime();
+            conversionCache.store(target.cacheKey(), output.toPath(), format);
+
+            // Once finished, mark the job as complete and provide the final path.
+            progressService.setJobCompleted(jobId, output.getAbsolutePath());
+            metrics.recordStage(ConversionMetrics.STAGE_FINALIZE, format, progressService.getJobSource(jobId),
+                    finalizeStart);
+
+        } catch (Exception e) {
+            handleFailure(e, output, target);
+        }
+    }
+
+    // Several formats from one source: the source is decoded once and every frame is handed to one recorder
+    // per format. Each output succeeds, fails or gets cancelled on its own, without stopping the others.
+    private void convertMultipleOutputs(File input, List<ConversionTarget> targets) {
+        List<Output> outputs = new ArrayList<>();
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input)) {
+            // The formats all come from one request, so they share a profile, and with it the decoder threads.
+            targets.get(0).profile().applyTo(grabber);
+            for (ConversionTarget target : targets) {
+                progressService.setJobState(target.jobId(), JobState.CONVERTING);
+            }
+            String source = progressService.getJobSource(targets.get(0).jobId());
+            long probeStart = System.nanoTime();
+            grabber.start();
+            metrics.recordStage(ConversionMetrics.STAGE_PROBE, ConversionMetrics.FORMAT_MULTIPLE, source, probeStart);
+            for (ConversionTarget target : targets) {
+                progressService.setJobMode(target.jobId(), ProgressService.MODE_TRANSCODE);
+            }
 
-                        if (totalDuration > 0) {
-                            long currentTimestamp = grabber.getTimestamp();
-                            int progress = (int) (((double) currentTimestamp / totalDuration) * 100);
+            // If every format is audio, the video doesn't even need to be read, just like in transcodeAudio.
+            boolean needsVideo = targets.stream().anyMatch(target -> !isAudioFormat(target.format()));
+            if (!needsVideo) {
+                discardAllButAudio(grabber);
+            }
+
+            for (ConversionTarget target : targets) {
+                File file = resolveOutputFile(target.jobId(), target.format());
+                Files.deleteIfExists(file.toPath());
+                Output output = new Output(target, file, progressService.getJobStatus(target.jobId()));
+                outputs.add(output);
+                output.recorder = isAudioFormat(target.format())
+                        ? audioRecorder(grabber, file, target.format(), target.profile())
+                        : videoRecorder(grabber, file, target.format(), target.profile(), target.progressive());
+                output.recorder.start();
+                publishLiveOutput(target, file);
+            }
+
+            long totalDuration = grabber.getLengthInTime();
+            int lastReportedProgress = 0;
+            long convertStart = System.nanoTime();
+            Frame frame;
+            while ((frame = needsVideo ? grabber.grab() : grabber.grabSamples()) != null) {
+                for (Output output : outputs) {
+                    if (output.active()) {
+                        output.record(frame);
+                    }
+                }
+                if (outputs.stream().noneMatch(Output::active)) {
+                    break;
+                }
 
-                            if (progress > lastReportedProgress) {
-                                lastReportedProgress = progress;
-                                progressService.setProgress(jobId, Math.min(progress, 99));
-                            }
+                if (totalDuration > 0) {
+                    int progress = (int) (((double) grabber.getTimestamp() / totalDuration) * 100);
+                    if (progress > lastReportedProgress) {
+                        lastReportedProgress = progress;
+                        for (Output output : outputs) {
+                            progressService.setProgress(output.target.jobId(), Math.min(progress, 99));
                         }
                     }
                 }
             }
-            // Once finished, mark the job as complete and provide the final path.
+
+            for (Output output : outputs) {
+                if (output.active()) {
+                    output.finish();
+                }
+            }
+            metrics.recordStage(ConversionMetrics.STAGE_CONVERT, ConversionMetrics.FORMAT_MULTIPLE, source, convertStart);
+            metrics.recordThroughput(ConversionMetrics.FORMAT_MULTIPLE, source, ProgressService.MODE_TRANSCODE,
+                    totalDuration, grabber.getFrameRate(), needsVideo && grabber.hasVideo(), convertStart);
+        } catch (Exception e) {
+            // Something went wrong with the source itself, so every output that's still going has failed,
+            // including the ones that didn't get as far as having a recorder.
+            for (Output output : outputs) {
+                if (output.active()) {
+                    output.fail(e);
+                }
+            }
+            for (ConversionTarget target : targets.subList(outputs.size(), targets.size())) {
+                handleFailure(e, null, target);
+            }
+        }
+    }
+
+    // This converts straight from a stream (e.g. an upload that is still arriving) instead of a finished file,
+    // so reading the input and transcoding it happen at the same time. The caller must make sure the container
+    // can be read front to back without seeking (see StreamSniffer). If no cacheKey is given, the bytes are hashed
+    // as they come in (underneath the rewind buffer so each byte is counted once) and that hash is used instead.
+    public void convertStream(InputStream input, ConversionTarget target) {
+        String format = target.format();
+        String jobId = target.jobId();
+        String cacheKey = target.cacheKey();
+        File output = null;
+        MessageDigest digest = ConversionCache.newDigest();
+        DigestInputStream hashed = new DigestInputStream(input, digest);
+        try (InputStream in = new RewindableInputStream(hashed, STREAM_REWIND_BYTES)) {
+            output = resolveOutputFile(jobId, format);
+            Files.deleteIfExists(output.toPath());
+
+            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(in, STREAM_REWIND_BYTES)) {
+                // I close the stream myself below, after reading whatever the demuxer left behind.
+                grabber.setCloseInputStream(false);
+                convert(grabber, null, output, target);
+            }
+
+            // The demuxer can stop before the very last byte (e.g. trailing metadata). I read the rest so the
+            // sender isn't left hanging and the hash covers the whole input.
+            hashed.transferTo(OutputStream.nullOutputStream());
+
+            if (cacheKey == null) {
+                String sourceKey = "sha256:" + HexFormat.of().formatHex(digest.digest());
+                cacheKey = ConversionCache.cacheKey(sourceKey, format,
+                        encoderSettings(format, target.profile(), target.progressive()));
+            }
+            long finalizeStart = System.nanoTime();
+            conversionCache.store(cacheKey, output.toPath(), format);
+
             progressService.setJobCompleted(jobId, output.getAbsolutePath());
+            metrics.recordStage(ConversionMetrics.STAGE_FINALIZE, format, progressService.getJobSource(jobId),
+                    finalizeStart);
 
         } catch (Exception e) {
+            handleFailure(e, output, target);
+        }
+    }
+
+    // Before touching any frames I check whether the source streams already use the codecs
+    // the target container expects. If they do, I can copy the packets across untouched.
+    // Otherwise, long videos that are in a file (so they can be read from several places at once)
+    // are split up and transcoded in parallel, and everything else goes through the normal loop.
+    private void convert(FFmpegFrameGrabber grabber, File seekableInput, File output, ConversionTarget target)
+            throws Exception {
+        String format = target.format();
+        String jobId = target.jobId();
+        EncodingProfile profile = target.profile();
+        String source = progressService.getJobSource(jobId);
+        progressService.setJobState(jobId, JobState.CONVERTING);
+        profile.applyTo(grabber);
+
+        long probeStart = System.nanoTime();
+        grabber.start();
+        metrics.recordStage(ConversionMetrics.STAGE_PROBE, format, source, probeStart);
+
+        // Planning the segments reads the keyframe index, so it counts as part of the conversion.
+        long convertStart = System.nanoTime();
+        String mode;
+        if (canRemux(grabber, format, profile)) {
+            mode = ProgressService.MODE_REMUX;
+            progressService.setJobMode(jobId, mode);
+            publishLiveOutput(target, output);
+            remux(grabber, output, format, jobId, target.progressive());
+        } else {
+            // The segments are only joined at the very end, so a progressive target never takes the parallel path.
+            List<Long> segments = seekableInput != null && !target.progressive()
+                    ? segmentedTranscoder.planSegments(grabber, format)
+                    : null;
+            if (segments != null) {
+                mode = ProgressService.MODE_PARALLEL;
+                progressService.setJobMode(jobId, mode);
+                segmentedTranscoder.transcode(grabber, seekableInput, segments, output, jobId, profile);
+            } else {
+                mode = ProgressService.MODE_TRANSCODE;
+                progressService.setJobMode(jobId, mode);
+                publishLiveOutput(target, output);
+                if (isAudioFormat(format)) {
+                    transcodeAudio(grabber, output, format, jobId, profile);
+                } else {
+                    transcode(grabber, output, format, jobId, profile, target.progressive());
+                }
+            }
+        }
+        metrics.recordStage(ConversionMetrics.STAGE_CONVERT, format, source, convertStart);
+        metrics.recordThroughput(format, source, mode, grabber.getLengthInTime(), grabber.getFrameRate(),
+                !isAudioFormat(format) && grabber.hasVideo(), convertStart);
+    }
+
+    private void handleFailure(Exception e, File output, ConversionTarget target) {
+        String jobId = target.jobId();
+        if (!(e instanceof CancellationException)) {
             e.printStackTrace();
+            // The mode is set once the input has been opened, so a job still without one failed while probing.
+            ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+            String stage = job != null && ProgressService.MODE_PENDING.equals(job.getMode())
+                    ? ConversionMetrics.STAGE_PROBE
+                    : ConversionMetrics.STAGE_CONVERT;
+            metrics.recordFailure(stage, target.format(), progressService.getJobSource(jobId), e);
             progressService.setProgress(jobId, -1); // Mark job as failed.
-            if (output != null) {
-                output.delete();
+        }
+        // If the user cancelled the job, the grabber and recorder are already closed by now,
+        // so all that's left either way is removing the partial output.
+        if (output != null) {
+            output.delete();
+        }
+    }
+
+    // If this exact conversion has been done before, I copy the stored result into place and finish the job
+    // straight away. It returns false on a cache miss, in which case the caller converts as usual.
+    public boolean completeFromCache(String cacheKey, String format, String jobId) throws IOException {
+        Path cached = conversionCache.lookup(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        completeFromCachedFile(cached, format, jobId);
+        return true;
+    }
+
+    public void completeFromCachedFile(Path cached, String format, String jobId) throws IOException {
+        File output = resolveOutputFile(jobId, format);
+        conversionCache.copyTo(cached, output.toPath());
+        progressService.setJobMode(jobId, ProgressService.MODE_CACHED);
+        progressService.setJobCompleted(jobId, output.getAbsolutePath());
+    }
+
+    // This describes how a format gets encoded. It's part of the cache key, so if I ever change
+    // the encoder settings, old cached results stop matching instead of being served by mistake.
+    // For the lossy audio formats only the profile's audio bitrate matters, and WAV isn't affected at all.
+    // A progressive MP4 is laid out differently (fragmented), so it's stored separately from a normal one.
+    public static String encoderSettings(String format, EncodingProfile profile, boolean progressive) {
+        switch (format.toLowerCase()) {
+            case "mp4":
+                return "h264+" + profile.settings() + (progressive ? "+frag" : "");
+            case "mp3":
+                return "mp3@" + profile.audioBitrate();
+            case "ogg":
+                return "vorbis@" + profile.audioBitrate();
+            case "wav":
+                return "pcm_s16le";
+            default:
+                return format;
+        }
+    }
+
+    // The final file goes into the output store, where it can be downloaded until the job is evicted.
+    private File resolveOutputFile(String jobId, String format) throws IOException {
+        return outputStore.resolve(jobId, format);
+    }
+
+    // This is the original decode/encode loop for video targets. Every frame is decoded and then encoded again.
+    private void transcode(FFmpegFrameGrabber grabber, File output, String format, String jobId,
+                           EncodingProfile profile, boolean progressive) throws Exception {
+        ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+        long totalDuration = grabber.getLengthInTime();
+        int lastReportedProgress = 0;
+
+        try (FFmpegFrameRecorder recorder = videoRecorder(grabber, output, format, profile, progressive)) {
+            recorder.start();
+
+            Frame frame;
+            while ((frame = grabber.grab()) != null) {
+                checkCancelled(job);
+                recorder.record(frame);
+
+                if (totalDuration > 0) {
+                    long currentTimestamp = grabber.getTimestamp();
+                    int progress = (int) (((double) currentTimestamp / totalDuration) * 100);
+
+                    if (progress > lastReportedProgress) {
+                        lastReportedProgress = progress;
+                        progressService.setProgress(jobId, Math.min(progress, 99));
+                    }
+                }
             }
-        } finally {
-            // Delete the temporary input file to keep the system clean.
+        }
+    }
+
+    // This is the loop for mp3, wav and ogg. The picture is never needed, so the demuxer is told to skip every
+    // other stream (their packets aren't even read) and nothing but audio is decoded. The grabber converts the
+    // decoded samples once, straight into the sample format the encoder works in, so the recorder has nothing to convert.
+    private void transcodeAudio(FFmpegFrameGrabber grabber, File output, String format, String jobId,
+                                EncodingProfile profile) throws Exception {
+        ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+        long totalDuration = grabber.getLengthInTime();
+        int lastReportedProgress = 0;
+
+        discardAllButAudio(grabber);
+        grabber.setSampleFormat(encoderSampleFormat(format));
+
+        try (FFmpegFrameRecorder recorder = audioRecorder(grabber, output, format, profile)) {
+            recorder.start();
+
+            Frame frame;
+            while ((frame = grabber.grabSamples()) != null) {
+                checkCancelled(job);
+                recorder.recordSamples(frame.sampleRate, frame.audioChannels, frame.samples);
+
+                if (totalDuration > 0) {
+                    long currentTimestamp = grabber.getTimestamp();
+                    int progress = (int) (((double) currentTimestamp / totalDuration) * 100);
+
+                    if (progress > lastReportedProgress) {
+                        lastReportedProgress = progress;
+                        progressService.setProgress(jobId, Math.min(progress, 99));
+                    }
+                }
+            }
+        }
+    }
+
+    // The encoder settings for a video target: the frame rate comes from the source, the rest from the profile.
+    // If the profile caps the resolution, the recorder scales every frame down to the smaller size.
+    private FFmpegFrameRecorder videoRecorder(FFmpegFrameGrabber grabber, File output, String format,
+                                              EncodingProfile profile, boolean progressive) {
+        int[] size = profile.outputSize(grabber.getImageWidth(), grabber.getImageHeight());
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output, size[0], size[1], grabber.getAudioChannels());
+        recorder.setFormat(format);
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setFrameRate(grabber.getFrameRate());
+        recorder.setSampleRate(grabber.getSampleRate());
+        profile.applyTo(recorder);
+        fragmentForStreaming(recorder, format, progressive);
+        return recorder;
+    }
+
+    // The encoder settings for an audio target. The recorder always works in the encoder's own sample format.
+    private FFmpegFrameRecorder audioRecorder(FFmpegFrameGrabber grabber, File output, String format,
+                                              EncodingProfile profile) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output, grabber.getAudioChannels());
+        recorder.setFormat(format);
+        recorder.setAudioCodec(audioCodec(format));
+        recorder.setSampleFormat(encoderSampleFormat(format));
+        recorder.setSampleRate(grabber.getSampleRate());
+        recorder.setAudioBitrate(profile.audioBitrate());
+        return recorder;
+    }
+
+    // A normal MP4 has its index written at the end, so nothing can be played until the file is finished.
+    // A fragmented one starts with an empty index and is written as self-contained fragments, one per keyframe.
+    private static void fragmentForStreaming(FFmpegFrameRecorder recorder, String format, boolean progressive) {
+        if (progressive && "mp4".equals(format)) {
+            recorder.setOption("movflags", "frag_keyframe+empty_moov+default_base_moof");
+        }
+    }
+
+    // This tells /stream/{jobId} that the output can be followed while it's being written. The audio formats are
+    // written front to back (only their header gets touched up at the end, which players don't rely on), and so is
+    // a fragmented MP4. The file itself appears once the recorder has started; the stream waits for it.
+    private void publishLiveOutput(ConversionTarget target, File output) {
+        if (isAudioFormat(target.format()) || target.progressive()) {
+            progressService.setJobLiveOutput(target.jobId(), output.getAbsolutePath());
+        }
+    }
+
+    // This tells the demuxer to drop every stream except the audio one, so video and subtitle packets
+    // are skipped while reading instead of being read and thrown away.
+    static void discardAllButAudio(FFmpegFrameGrabber grabber) {
+        AVFormatContext context = grabber.getFormatContext();
+        int audioStream = grabber.getAudioStream();
+        for (int i = 0; i < context.nb_streams(); i++) {
+            if (i != audioStream) {
+                context.streams(i).discard(avcodec.AVDISCARD_ALL);
+            }
+        }
+    }
+
+    private static int audioCodec(String format) {
+        switch (format.toLowerCase()) {
+            case "wav":
+                return avcodec.AV_CODEC_ID_PCM_S16LE;
+            case "ogg":
+                return avcodec.AV_CODEC_ID_VORBIS;
+            default:
+                return avcodec.AV_CODEC_ID_MP3;
+        }
+    }
+
+    // The sample layout each audio encoder takes as input: LAME wants 16-bit planar, Vorbis float planar,
+    // and a WAV file is just interleaved 16-bit samples.
+    private static int encoderSampleFormat(String format) {
+        switch (format.toLowerCase()) {
+            case "wav":
+                return avutil.AV_SAMPLE_FMT_S16;
+            case "ogg":
+                return avutil.AV_SAMPLE_FMT_FLTP;
+            default:
+                return avutil.AV_SAMPLE_FMT_S16P;
+        }
+    }
+
+    // This is the fast path. The compressed packets are copied into the new container as they are,
+    // so nothing gets decoded or encoded and the job is mostly just reading and writing the file.
+    private void remux(FFmpegFrameGrabber grabber, File output, String format, String jobId, boolean progressive)
+            throws Exception {
+        ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+        long totalDuration = grabber.getLengthInTime();
+        int lastReportedProgress = 0;
+
+        boolean audioOnly = isAudioFormat(format);
+        AVFormatContext inputContext = grabber.getFormatContext();
+        int audioStreamIndex = grabber.getAudioStream();
+        // The output has at most one video and one audio stream (canRemux makes sure the input has no more than
+        // that). Subtitles, data and attachments would break the muxer, so their packets are dropped.
+        int videoStreamIndex = audioOnly ? -1 : grabber.getVideoStream();
+
+        // A width and height of 0 means the recorder never creates a video stream for audio targets,
+        // so any video (or cover art) packets from the source are simply left out.
+        int width = audioOnly ? 0 : grabber.getImageWidth();
+        int height = audioOnly ? 0 : grabber.getImageHeight();
+
+        try (FFmpegFrameRecorder recorder =
+                     new FFmpegFrameRecorder(output, width, height, grabber.getAudioChannels())) {
+
+            recorder.setFormat(format);
+            fragmentForStreaming(recorder, format, progressive);
+            recorder.start(inputContext);
+
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                checkCancelled(job);
+                int streamIndex = packet.stream_index();
+                long pts = packet.pts();
+
+                if (streamIndex != audioStreamIndex && streamIndex != videoStreamIndex) {
+                    // I'm not writing this packet, so I release its data myself.
+                    av_packet_unref(packet);
+                } else {
+                    recorder.recordPacket(packet);
+                }
+
+                if (totalDuration > 0 && pts != AV_NOPTS_VALUE) {
+                    AVRational timeBase = inputContext.streams(streamIndex).time_base();
+                    long currentTimestamp = (long) (pts * av_q2d(timeBase) * 1_000_000);
+                    int progress = (int) (((double) currentTimestamp / totalDuration) * 100);
+
+                    if (progress > lastReportedProgress) {
+                        lastReportedProgress = progress;
+                        progressService.setProgress(jobId, Math.min(progress, 99));
+                    }
+                }
+            }
+        }
+    }
+
+    // I only take the fast path when every stream I need can go into the target container untouched,
+    // and for video, when the source is within the profile's resolution and bitrate limits.
+    private boolean canRemux(FFmpegFrameGrabber grabber, String format, EncodingProfile profile) {
+        int audioCodec = grabber.getAudioCodec();
+        boolean hasAudio = grabber.hasAudio();
+
+        // recorder.start(inputContext) sets up each output stream from the last input stream of that kind, but
+        // remux writes the packets of the streams the grabber picked. With two audio tracks (or a second video
+        // stream, like cover art) the header could describe a different stream than the packets, so I transcode.
+        if (countStreams(grabber, avutil.AVMEDIA_TYPE_AUDIO) > 1
+                || (!isAudioFormat(format) && countStreams(grabber, avutil.AVMEDIA_TYPE_VIDEO) > 1)) {
+            return false;
+        }
+
+        switch (format.toLowerCase()) {
+            case "mp4":
+                // H.264 video with AAC or MP3 audio (or no audio at all) is exactly what my mp4 output uses.
+                return grabber.hasVideo()
+                        && grabber.getVideoCodec() == avcodec.AV_CODEC_ID_H264
+                        && profile.fits(grabber)
+                        && (!hasAudio || audioCodec == avcodec.AV_CODEC_ID_AAC || audioCodec == avcodec.AV_CODEC_ID_MP3);
+            case "mp3":
+                return hasAudio && audioCodec == avcodec.AV_CODEC_ID_MP3;
+            case "ogg":
+                return hasAudio && (audioCodec == avcodec.AV_CODEC_ID_VORBIS || audioCodec == avcodec.AV_CODEC_ID_OPUS);
+            case "wav":
+                return hasAudio && audioCodec == avcodec.AV_CODEC_ID_PCM_S16LE;
+            default:
+                return false;
+        }
+    }
+
+    private static int countStreams(FFmpegFrameGrabber grabber, int mediaType) {
+        AVFormatContext context = grabber.getFormatContext();
+        int count = 0;
+        for (int i = 0; i < context.nb_streams(); i++) {
+            if (context.streams(i).codecpar().codec_type() == mediaType) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // I look the job up once before the loop, so checking for cancellation on every frame is just a volatile read.
+    private void checkCancelled(ProgressService.JobStatus job) {
+        if (job != null && job.isCancelled()) {
+            throw new CancellationException("Job was cancelled");
+        }
+    }
+
+    static boolean isAudioFormat(String format) {
+        return format.equalsIgnoreCase("mp3")
+                || format.equalsIgnoreCase("wav")
+                || format.equalsIgnoreCase("ogg");
+    }
+
+    // One of the outputs of convertMultipleOutputs. Once it has finished, failed or been cancelled, its recorder
+    // is closed and it stops getting frames.
+    private class Output {
+        private final ConversionTarget target;
+        private final File file;
+        private final ProgressService.JobStatus job;
+        private FFmpegFrameRecorder recorder;
+        private boolean done;
+
+        Output(ConversionTarget target, File file, ProgressService.JobStatus job) {
+            this.target = target;
+            this.file = file;
+            this.job = job;
+        }
+
+        boolean active() {
+            return !done;
+        }
+
+        void record(Frame frame) {
             try {
-                if (input != null) {
-                    Files.deleteIfExists(input.toPath());
+                checkCancelled(job);
+                if (isAudioFormat(target.format())) {
+                    if (frame.samples != null) {
+                        recorder.recordSamples(frame.sampleRate, frame.audioChannels, frame.samples);
+                    }
+                } else {
+                    recorder.record(frame);
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                fail(e);
+            }
+        }
+
+        void finish() {
+            try {
+                done = true;
+                recorder.close();
+                long finalizeStart = System.nanoTime();
+                conversionCache.store(target.cacheKey(), file.toPath(), target.format());
+                progressService.setJobCompleted(target.jobId(), file.getAbsolutePath());
+                metrics.recordStage(ConversionMetrics.STAGE_FINALIZE, target.format(),
+                        progressService.getJobSource(target.jobId()), finalizeStart);
+            } catch (Exception e) {
+                handleFailure(e, file, target);
             }
         }
+
+        void fail(Exception e) {
+            done = true;
+            if (recorder != null) {
+                try {
+                    recorder.close();
+                } catch (Exception closeError) {
+                    // The output is being thrown away anyway.
+                }
+            }
+            handleFailure(e, file, target);
+        }
     }
 }
-
@@ -0,0 +1,10 @@
+package com.example.videoconverter;
+
+// One output of a conversion: the format to produce, the job that tracks it (its progress and download link),
+// the cache key of the result and the encoding profile to use. A request for several formats has one of these
+// per format, all fed by a single decode of the source.
+// A progressive target can be followed on /stream/{jobId} while it's being written: an MP4 is written as a
+// fragmented MP4 for that, and never split into parallel segments. The audio formats can always be followed.
+public record ConversionTarget(String format, String jobId, String cacheKey, EncodingProfile profile,
+                               boolean progressive) {
+}
@@ -1,14 +1,30 @@
 package com.example.videoconverter;
 
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 // This is my controller for handling direct file uploads.
 // I'm using @RestController because its methods are for my API and return data, not HTML pages.
@@ -17,58 +33,282 @@ public class ConvertController {
 
     // I created this list to make sure users can only convert to formats I support.
     // It's a simple security and validation measure.
-    private static final List<String> ALLOWED_FORMATS = List.of("mp4", "mp3", "ogg", "wav");
+    static final List<String> ALLOWED_FORMATS = List.of("mp4", "mp3", "ogg", "wav");
 
+    // A streaming upload that was started but never sent its body is forgotten after this long.
+    private static final long PENDING_UPLOAD_TIMEOUT_MILLIS = 60 * 60 * 1000;
+
+    private final ConversionScheduler conversionScheduler;
     private final ConversionService conversionService;
     private final ProgressService progressService;
+    private final ConversionMetrics metrics;
+    private final DataSize maxUploadSize;
+
+    // Streaming uploads that have a jobId but haven't sent their file yet, keyed by jobId.
+    private final Map<String, PendingUpload> pendingUploads = new ConcurrentHashMap<>();
 
     // Using constructor injection here. Spring automatically provides the services I need.
-    public ConvertController(ConversionService conversionService, ProgressService progressService) {
+    // Streaming uploads use the same size limit as the normal multipart ones.
+    public ConvertController(ConversionScheduler conversionScheduler,
+                             ConversionService conversionService,
+                             ProgressService progressService,
+                             ConversionMetrics metrics,
+                             @Value("${spring.servlet.multipart.max-file-size:200MB}") DataSize maxUploadSize) {
+        this.conversionScheduler = conversionScheduler;
         this.conversionService = conversionService;
         this.progressService = progressService;
+        this.metrics = metrics;
+        this.maxUploadSize = maxUploadSize;
     }
 
     // This method handles the POST request when a user uploads a file using the form.
+    // "format" can be given more than once (or as "mp4,mp3") to get several formats from one upload.
+    // The file is then decoded once, and each format gets its own jobId, progress and download link.
+    // "profile" (fast, balanced or archival) picks the speed/quality trade-off; without it the server decides.
+    // With "progressive", the output can be followed on /stream/{jobId} while it's being converted.
     @PostMapping("/convert")
-    public ResponseEntity<Map<String, String>> convertVideo(
+    public ResponseEntity<Map<String, Object>> convertVideo(
             // @RequestParam("file") catches the uploaded file. The name "file" must match the name in my HTML form.
             @RequestParam("file") MultipartFile file,
-            @RequestParam("format") String format) throws IOException {
+            @RequestParam("format") List<String> formats,
+            @RequestParam(value = "profile", required = false) String profileName,
+            @RequestParam(value = "progressive", defaultValue = "false") boolean progressive) throws IOException {
 
         // First, I do some basic validation.
         if (file.isEmpty()) {
             return ResponseEntity.badRequest().body(Map.of("error", "No file uploaded."));
         }
 
-        format = format.toLowerCase();
-        if (!ALLOWED_FORMATS.contains(format)) {
-            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported format: " + format));
+        formats = normaliseFormats(formats);
+        for (String format : formats) {
+            if (!ALLOWED_FORMATS.contains(format)) {
+                return ResponseEntity.badRequest().body(Map.of("error", "Unsupported format: " + format));
+            }
+        }
+        if (formats.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "No format given."));
+        }
+
+        EncodingProfile requestedProfile = EncodingProfile.fromName(profileName);
+        if (requestedProfile == null && profileName != null && !profileName.isBlank()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported profile: " + profileName));
         }
+        EncodingProfile profile = conversionScheduler.chooseProfile(requestedProfile);
 
         // I get the original name of the file the user uploaded.
         String originalName = file.getOriginalFilename() != null ? file.getOriginalFilename() : "upload";
 
-        // I'm cleaning up the filename here by removing the extension (e.g., ".mp3")
-        // This gives me a clean base name to use for the final downloaded file.
-        String baseFileName = originalName.contains(".")
-                ? originalName.substring(0, originalName.lastIndexOf('.'))
-                : originalName;
-
         // I save the uploaded file to a temporary location on the server so my ConversionService can access it.
+        // This happens before any job exists, so an upload that breaks off doesn't leave jobs behind that never run.
+        String metricsFormat = formats.size() == 1 ? formats.get(0) : ConversionMetrics.FORMAT_MULTIPLE;
+        long uploadStart = System.nanoTime();
         File tempInputFile = File.createTempFile("input-" + UUID.randomUUID(), "-" + originalName);
-        file.transferTo(tempInputFile);
+        String sourceKey;
+        try (InputStream in = file.getInputStream()) {
+            sourceKey = saveAndHash(in, tempInputFile);
+        } catch (IOException e) {
+            metrics.recordFailure(ConversionMetrics.STAGE_UPLOAD, metricsFormat, ProgressService.SOURCE_UPLOAD, e);
+            tempInputFile.delete();
+            throw e;
+        }
+        metrics.recordStage(ConversionMetrics.STAGE_UPLOAD, metricsFormat, ProgressService.SOURCE_UPLOAD, uploadStart);
+
+        // I generate a unique ID for each format. This is the "ticket number" for the frontend.
+        // I store the clean filename in the ProgressService so it's ready for the final download.
+        Map<String, String> jobsByFormat = new LinkedHashMap<>();
+        for (String format : formats) {
+            String jobId = UUID.randomUUID().toString();
+            progressService.createJob(jobId, ProgressService.SOURCE_UPLOAD);
+            progressService.setJobFileName(jobId, baseFileName(originalName));
+            jobsByFormat.put(format, jobId);
+        }
+
+        return ResponseEntity.ok(queueSavedInput(tempInputFile, sourceKey, jobsByFormat, profile, progressive));
+    }
+
+    // This is the first step of a streaming upload. The browser tells me the format and filename, and gets a jobId
+    // back straight away, so it can watch the progress while it sends the file body with PUT /convert/stream/{jobId}.
+    @PostMapping("/convert/stream")
+    public ResponseEntity<Map<String, Object>> startStreamingUpload(
+            @RequestParam("format") String format,
+            @RequestParam(value = "fileName", defaultValue = "upload") String fileName,
+            @RequestParam(value = "profile", required = false) String profileName,
+            @RequestParam(value = "progressive", defaultValue = "false") boolean progressive) {
+
+        format = format.toLowerCase();
+        if (!ALLOWED_FORMATS.contains(format)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported format: " + format));
+        }
+
+        EncodingProfile requestedProfile = EncodingProfile.fromName(profileName);
+        if (requestedProfile == null && profileName != null && !profileName.isBlank()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported profile: " + profileName));
+        }
+
+        // I check the queue now rather than after the whole file has been sent.
+        conversionScheduler.ensureCapacity();
 
-        // I generate a unique ID for this specific conversion. This is the "ticket number" for the frontend.
         String jobId = UUID.randomUUID().toString();
-        progressService.createJob(jobId);
+        progressService.createJob(jobId, ProgressService.SOURCE_STREAM);
+        progressService.setJobFileName(jobId, baseFileName(fileName));
 
-        // I store the clean filename in the ProgressService so it's ready for the final download.
-        progressService.setJobFileName(jobId, baseFileName);
+        removeStalePendingUploads();
+        EncodingProfile profile = conversionScheduler.chooseProfile(requestedProfile);
+        pendingUploads.put(jobId,
+                new PendingUpload(format, profile, progressive, fileName, System.currentTimeMillis()));
+
+        return ResponseEntity.ok(Map.of("jobId", jobId, "profile", profile.label(), "progressive", progressive));
+    }
+
+    // This is the second step of a streaming upload. The request body is the raw file. If the container can be
+    // read front to back and a worker is free, the body goes straight into the grabber while it's still arriving,
+    // so uploading and converting overlap. Otherwise (e.g. an MP4 with its index at the end) I save it to a file first.
+    @PutMapping("/convert/stream/{jobId}")
+    public ResponseEntity<Map<String, Object>> streamUpload(@PathVariable String jobId,
+                                                            HttpServletRequest request) throws Exception {
+        PendingUpload upload = pendingUploads.remove(jobId);
+        if (upload == null || progressService.getJobStatus(jobId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > maxUploadSize.toBytes()) {
+            progressService.setProgress(jobId, -1);
+            return ResponseEntity.status(413).body(Map.of("error", "File is too large."));
+        }
+
+        // The counting stream reports how much of the upload has arrived, so the progress bar moves from the start.
+        UploadProgressInputStream counted = new UploadProgressInputStream(
+                request.getInputStream(), progressService, jobId, contentLength, maxUploadSize.toBytes());
+        BufferedInputStream in = new BufferedInputStream(counted, StreamSniffer.PEEK_BYTES);
+        progressService.setJobState(jobId, JobState.DOWNLOADING);
+
+        try {
+            if (!StreamSniffer.needsSeeking(in)) {
+                Optional<CompletableFuture<Void>> streamed = conversionScheduler.trySubmitStream(in,
+                        new ConversionTarget(upload.format(), jobId, null, upload.profile(), upload.progressive()));
+                if (streamed.isPresent()) {
+                    // I wait here until the worker is done with the stream, because the body can only be read
+                    // while this request is still open.
+                    streamed.get().get();
+                    return ResponseEntity.ok(Map.of("jobId", jobId, "streamed", true));
+                }
+            }
+
+            // The fallback: receiving the file counts as the first 40% of the bar, converting it as the rest.
+            progressService.setPhaseRange(jobId, 0, 40);
+            long uploadStart = System.nanoTime();
+            File tempInputFile = File.createTempFile("input-" + UUID.randomUUID(), "-" + upload.fileName());
+            String sourceKey = saveAndHash(in, tempInputFile);
+            metrics.recordStage(ConversionMetrics.STAGE_UPLOAD, upload.format(), ProgressService.SOURCE_STREAM,
+                    uploadStart);
+            progressService.setPhaseRange(jobId, 40, 100);
+            progressService.setJobState(jobId, JobState.QUEUED);
+
+            Map<String, Object> response = new HashMap<>(
+                    queueSavedInput(tempInputFile, sourceKey, Map.of(upload.format(), jobId), upload.profile(),
+                            upload.progressive()));
+            response.put("streamed", false);
+            return ResponseEntity.ok(response);
+        } catch (QueueFullException e) {
+            throw e;
+        } catch (Exception e) {
+            // Most likely the client went away or the upload was too big, so the job can't go any further.
+            metrics.recordFailure(ConversionMetrics.STAGE_UPLOAD, upload.format(), ProgressService.SOURCE_STREAM, e);
+            progressService.setProgress(jobId, -1);
+            throw e;
+        }
+    }
+
+    // This copies an input to a temp file and runs the bytes through SHA-256 at the same time.
+    // The hash identifies the content for the cache without reading the file a second time.
+    static String saveAndHash(InputStream input, File tempInputFile) throws IOException {
+        MessageDigest digest = ConversionCache.newDigest();
+        try (InputStream in = new DigestInputStream(input, digest)) {
+            Files.copy(in, tempInputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return "sha256:" + HexFormat.of().formatHex(digest.digest());
+    }
 
-        // Here I kick off the actual conversion. Because it's an @Async method, it runs in the background.
-        conversionService.convertFile(tempInputFile, format, jobId);
+    // This finishes off the jobs (one per format) whose input has been saved to a file: straight from the cache
+    // if possible, otherwise by handing them to the scheduler as one task.
+    private Map<String, Object> queueSavedInput(File tempInputFile, String sourceKey, Map<String, String> jobsByFormat,
+                                                EncodingProfile profile, boolean progressive) throws IOException {
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        List<ConversionTarget> targets = new ArrayList<>();
+        for (Map.Entry<String, String> entry : jobsByFormat.entrySet()) {
+            String format = entry.getKey();
+            String jobId = entry.getValue();
+            String cacheKey = ConversionCache.cacheKey(
+                    sourceKey, format, ConversionService.encoderSettings(format, profile, progressive));
+
+            // If someone has already converted this exact file to this format, that job is done right away.
+            boolean cached = conversionService.completeFromCache(cacheKey, format, jobId);
+            if (!cached) {
+                targets.add(new ConversionTarget(format, jobId, cacheKey, profile, progressive));
+            }
+            jobs.add(Map.of("format", format, "jobId", jobId, "cached", cached));
+        }
+
+        // Here I hand the conversion to the scheduler. It runs in the background once a worker is free.
+        // If the queue is full this throws a QueueFullException, which my ApiExceptionHandler turns into a 429.
+        int queuePosition = 0;
+        if (targets.isEmpty()) {
+            tempInputFile.delete();
+        } else {
+            try {
+                queuePosition = conversionScheduler.submitAll(tempInputFile, targets);
+            } catch (QueueFullException e) {
+                // The queue filled up in the meantime, so I clean up before answering with 429.
+                targets.forEach(target -> progressService.removeJob(target.jobId()));
+                tempInputFile.delete();
+                throw e;
+            }
+        }
+
+        // I immediately send the jobIds back to the browser. The frontend can now start checking for progress.
+        // "jobId" is the first format's job, which is all a single-format request needs.
+        return Map.of(
+                "jobId", jobs.get(0).get("jobId"),
+                "queuePosition", queuePosition,
+                "cached", targets.isEmpty(),
+                "profile", profile.label(),
+                "progressive", progressive,
+                "jobs", jobs);
+    }
+
+    // Lowercase, without blanks or repeats, in the order they were asked for.
+    static List<String> normaliseFormats(List<String> formats) {
+        return formats.stream()
+                .map(format -> format.trim().toLowerCase())
+                .filter(format -> !format.isEmpty())
+                .distinct()
+                .toList();
+    }
+
+    // I'm cleaning up the filename here by removing the extension (e.g., ".mp3")
+    // This gives me a clean base name to use for the final downloaded file.
+    static String baseFileName(String originalName) {
+        return originalName.contains(".")
+                ? originalName.substring(0, originalName.lastIndexOf('.'))
+                : originalName;
+    }
+
+    // Reserved streaming uploads that never received a body would otherwise stay here forever.
+    // Their jobs are marked as failed, so the ProgressService evicts them like any other finished job.
+    private void removeStalePendingUploads() {
+        long cutoff = System.currentTimeMillis() - PENDING_UPLOAD_TIMEOUT_MILLIS;
+        pendingUploads.entrySet().removeIf(entry -> {
+            if (entry.getValue().createdAt() >= cutoff) {
+                return false;
+            }
+            progressService.setProgress(entry.getKey(), -1);
+            return true;
+        });
+    }
 
-        // I immediately send the jobId back to the browser. The frontend can now start checking for progress.
-        return ResponseEntity.ok(Map.of("jobId", jobId));
+    // What I remember about a streaming upload between its POST and its PUT.
+    private record PendingUpload(String format, EncodingProfile profile, boolean progressive, String fileName,
+                                 long createdAt) {
     }
 }
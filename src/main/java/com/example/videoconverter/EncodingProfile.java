@@ -0,0 +1,131 @@
+package com.example.videoconverter;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+import java.util.Locale;
+
+// The trade-off between encoding speed and output quality, picked per request (or from
+// converter.encoding.profile). Only encoded outputs are affected; a remux copies the source as it is.
+//
+// The profiles are written in x264 terms (preset, CRF). The FFmpeg build that ships with JavaCV is the LGPL one,
+// which encodes H.264 with OpenH264 instead, so for that encoder I translate them: the CRF becomes a QP range,
+// and the preset picks the H.264 profile and entropy coder, which is where most of OpenH264's speed difference is.
+public enum EncodingProfile {
+
+    // Built for a busy server: smaller frames, the cheapest coding tools, and one thread per job,
+    // because when the queue is deep every core already has a job of its own.
+    FAST("veryfast", 28, 2_500, 96, 720, 1, "constrained_baseline", "cavlc"),
+    BALANCED("medium", 23, 6_000, 128, 1080, 0, "main", "cabac"),
+    // Keeps the source resolution and has no bitrate cap, for when the result matters more than the wait.
+    ARCHIVAL("slow", 18, 0, 192, 0, 0, "high", "cabac");
+
+    // avcodec picks the first H.264 encoder it has, and that doesn't change while the app is running.
+    private static final boolean X264 = isX264();
+
+    private final String preset;
+    private final int crf;
+    private final int maxVideoKbps;
+    private final int audioKbps;
+    private final int maxHeight;
+    private final int threads;
+    private final String openH264Profile;
+    private final String openH264Coder;
+
+    // A limit of 0 means no limit, and 0 threads lets FFmpeg use one per core.
+    EncodingProfile(String preset, int crf, int maxVideoKbps, int audioKbps, int maxHeight, int threads,
+                    String openH264Profile, String openH264Coder) {
+        this.preset = preset;
+        this.crf = crf;
+        this.maxVideoKbps = maxVideoKbps;
+        this.audioKbps = audioKbps;
+        this.maxHeight = maxHeight;
+        this.threads = threads;
+        this.openH264Profile = openH264Profile;
+        this.openH264Coder = openH264Coder;
+    }
+
+    // Returns null for a name that isn't a profile, so the controllers can answer with a 400.
+    public static EncodingProfile fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // One step towards FAST, used by the scheduler when the queue gets deep.
+    public EncodingProfile faster() {
+        return this == FAST ? FAST : values()[ordinal() - 1];
+    }
+
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    // Everything here that changes the output bytes, for the cache key. Threads are left out on purpose.
+    public String settings() {
+        return label() + ":" + preset + "/crf" + crf + "/max" + maxVideoKbps + "k/" + maxHeight + "p/audio" + audioKbps + "k";
+    }
+
+    public int audioBitrate() {
+        return audioKbps * 1000;
+    }
+
+    // The output size for a source: scaled down (keeping the aspect ratio) if it's taller than the cap.
+    // H.264 needs even dimensions, so I round to those.
+    public int[] outputSize(int width, int height) {
+        if (maxHeight == 0 || height <= maxHeight) {
+            return new int[] {width, height};
+        }
+        int scaledWidth = (int) Math.round((double) width * maxHeight / height / 2) * 2;
+        return new int[] {Math.max(2, scaledWidth), maxHeight};
+    }
+
+    // Whether the source can be copied as it is, i.e. a remux wouldn't break the size or bitrate limits.
+    // A source whose bitrate the container doesn't state gets the benefit of the doubt.
+    public boolean fits(FFmpegFrameGrabber grabber) {
+        boolean sizeFits = maxHeight == 0 || grabber.getImageHeight() <= maxHeight;
+        boolean bitrateFits = maxVideoKbps == 0 || grabber.getVideoBitrate() <= maxVideoKbps * 1000;
+        return sizeFits && bitrateFits;
+    }
+
+    // The decoder gets the same number of threads as the encoder.
+    public void applyTo(FFmpegFrameGrabber grabber) {
+        grabber.setVideoOption("threads", String.valueOf(threads));
+    }
+
+    // Sets up the H.264 encoder and the audio bitrate. The recorder's size has to come from outputSize already.
+    public void applyTo(FFmpegFrameRecorder recorder) {
+        recorder.setVideoOption("threads", String.valueOf(threads));
+        if (X264) {
+            recorder.setVideoOption("preset", preset);
+            recorder.setVideoOption("crf", String.valueOf(crf));
+        } else {
+            // Quality mode keeps the QP inside the range and spends whatever bits that takes. With a bitrate cap,
+            // the cap is also its target and the top of the range is left open, so it can raise the QP far enough
+            // to stay under the cap, while qmin still stops it spending bits beyond the profile's quality.
+            recorder.setVideoOption("rc_mode", "quality");
+            recorder.setVideoOption("qmin", String.valueOf(crf - 4));
+            recorder.setVideoOption("qmax", String.valueOf(maxVideoKbps > 0 ? 51 : crf + 8));
+            recorder.setVideoOption("profile", openH264Profile);
+            recorder.setVideoOption("coder", openH264Coder);
+        }
+        recorder.setVideoBitrate(X264 ? 0 : maxVideoKbps * 1000);
+        if (maxVideoKbps > 0) {
+            recorder.setVideoOption("maxrate", maxVideoKbps + "k");
+            recorder.setVideoOption("bufsize", (maxVideoKbps * 2) + "k");
+        }
+        recorder.setAudioBitrate(audioBitrate());
+    }
+
+    private static boolean isX264() {
+        AVCodec encoder = avcodec.avcodec_find_encoder(avcodec.AV_CODEC_ID_H264);
+        return encoder != null && "libx264".equals(encoder.name().getString());
+    }
+}
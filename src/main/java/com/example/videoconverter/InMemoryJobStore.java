@@ -0,0 +1,72 @@
+package com.example.videoconverter;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The default job store: every job lives in this JVM, and every job is local.
+// I'm using a ConcurrentHashMap because it's thread-safe, which is essential since conversions run on
+// the scheduler's worker threads while web threads are reading the status. The JobStatus objects inside
+// are updated with atomics and volatiles, so there's no locking anywhere.
+@Component
+@ConditionalOnProperty(name = "converter.jobstore.type", havingValue = "memory", matchIfMissing = true)
+public class InMemoryJobStore implements JobStore {
+
+    private final Map<String, ProgressService.JobStatus> jobs = new ConcurrentHashMap<>();
+
+    @Override
+    public ProgressService.JobStatus local(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    @Override
+    public ProgressService.JobStatus get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    @Override
+    public void create(String jobId, ProgressService.JobStatus status) {
+        jobs.put(jobId, status);
+    }
+
+    @Override
+    public void save(String jobId, ProgressService.JobStatus status) {
+        // The map holds the live objects, so there's nothing to write.
+    }
+
+    @Override
+    public boolean remove(String jobId) {
+        return jobs.remove(jobId) != null;
+    }
+
+    @Override
+    public Map<String, ProgressService.JobStatus> localJobs() {
+        return jobs;
+    }
+
+    @Override
+    public Collection<String> jobIds() {
+        return jobs.keySet();
+    }
+
+    @Override
+    public boolean requestCancel(String jobId) {
+        // Every job is local, so the ProgressService cancels it directly.
+        return false;
+    }
+
+    @Override
+    public List<String> pollChanges() {
+        return List.of();
+    }
+
+    @Override
+    public Optional<SharedWorkQueue> sharedQueue() {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.videoconverter;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// This controller lets the user manage a job after it has been submitted.
+@RestController
+@RequestMapping("/jobs")
+public class JobController {
+
+    private final ConversionScheduler conversionScheduler;
+    private final ProgressService progressService;
+
+    public JobController(ConversionScheduler conversionScheduler, ProgressService progressService) {
+        this.conversionScheduler = conversionScheduler;
+        this.progressService = progressService;
+    }
+
+    // This cancels a queued or running job. A running job stops at its next frame
+    // and its grabber, recorder and partial output file are cleaned up.
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<Void> cancelJob(@PathVariable String jobId) {
+        if (progressService.getJobStatus(jobId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // If the job has already finished (or failed) there's nothing left to cancel.
+        if (!conversionScheduler.cancel(jobId)) {
+            return ResponseEntity.status(409).build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+}
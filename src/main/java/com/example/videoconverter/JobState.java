@@ -0,0 +1,33 @@
+package com.example.videoconverter;
+
+// These are the stages a job goes through. A job starts QUEUED, may spend some time DOWNLOADING its input
+// (from YouTube or a streaming upload), is CONVERTING while a worker has it, and ends as DONE, FAILED or CANCELLED.
+// Once a job has ended it can't move anywhere else, so a late update from a worker can't bring it back to life.
+public enum JobState {
+    QUEUED,
+    DOWNLOADING,
+    CONVERTING,
+    DONE,
+    FAILED,
+    CANCELLED;
+
+    public boolean isTerminal() {
+        return this == DONE || this == FAILED || this == CANCELLED;
+    }
+
+    // A downloaded input goes back to QUEUED while it waits for a worker. When the download is piped straight
+    // into the converter, the job is both downloading and converting, and CONVERTING is what I show.
+    public boolean canMoveTo(JobState next) {
+        return switch (this) {
+            case QUEUED -> next != QUEUED;
+            case DOWNLOADING -> next != DOWNLOADING;
+            case CONVERTING -> next.isTerminal();
+            case DONE, FAILED, CANCELLED -> false;
+        };
+    }
+
+    // The lowercase name is what the JSON responses and the metrics use.
+    public String label() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.videoconverter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Where the ProgressService keeps its jobs (converter.jobstore.type). The default, "memory", is a map in this JVM,
+// so every request about a job has to reach the instance that accepted it. "shared-dir" keeps them in a directory
+// that several instances share, which lets any of them report progress, serve the download (with converter.output.dir
+// shared as well) and pick up queued conversions from its SharedWorkQueue.
+//
+// A job is always run by one instance, which keeps it in memory as a live JobStatus and updates it there; that's
+// the "local" job. Everyone else reads a copy of it from the store.
+public interface JobStore {
+
+    // The job as this instance runs it, or null if it doesn't run here. Only local jobs are ever updated.
+    ProgressService.JobStatus local(String jobId);
+
+    // The job wherever it runs. For a job run elsewhere this is a snapshot that doesn't change, so a caller
+    // following a job asks again each time.
+    ProgressService.JobStatus get(String jobId);
+
+    // A new job that this instance runs.
+    void create(String jobId, ProgressService.JobStatus status);
+
+    // Called after a local job has changed, so the other instances see it.
+    void save(String jobId, ProgressService.JobStatus status);
+
+    // Forgets a job, wherever it runs. Returns true for exactly one of several callers, so only one deletes its output.
+    boolean remove(String jobId);
+
+    // The jobs this instance runs, for its gauges and for keeping itself under converter.jobs.max-entries.
+    Map<String, ProgressService.JobStatus> localJobs();
+
+    // Every job in the store, for evicting the expired ones.
+    Collection<String> jobIds();
+
+    // Asks the instance running a job to cancel it. Returns false if there's no such job or it has ended.
+    boolean requestCancel(String jobId);
+
+    // Picks up what other instances did since the last call: the jobs they changed, so their subscribers get an
+    // event, and cancel requests for local jobs, which are applied here. Returns the jobs that changed.
+    List<String> pollChanges();
+
+    // The queue through which conversions are handed to other instances, if this store is shared by several.
+    Optional<SharedWorkQueue> sharedQueue();
+}
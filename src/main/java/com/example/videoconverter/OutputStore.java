@@ -0,0 +1,28 @@
+package com.example.videoconverter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// This is where finished outputs live until they're downloaded and their job is evicted (converter.jobs.ttl).
+// Each file is named after its job rather than the video title, so two jobs with the same title can't overwrite
+// each other; the title only comes back as the download's file name.
+@Component
+public class OutputStore {
+
+    private final Path directory;
+
+    public OutputStore(@Value("${converter.output.dir:${java.io.tmpdir}/video-converter-outputs}") String directory) {
+        this.directory = Path.of(directory);
+    }
+
+    // The file a job's output is written to. The directory is created on first use.
+    public File resolve(String jobId, String format) throws IOException {
+        Files.createDirectories(directory);
+        return directory.resolve(jobId + "." + format).toFile();
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.videoconverter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+// This wraps the stdout of an external process (like yt-dlp writing a video to "-").
+// When the stream ends I check how the process exited, so a download that fails half way
+// shows up as an error instead of looking like a short but complete file.
+public class ProcessInputStream extends FilterInputStream {
+
+    private final Process process;
+    private final String name;
+
+    public ProcessInputStream(Process process, String name) {
+        super(process.getInputStream());
+        this.process = process;
+        this.name = name;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            checkExitCode();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n < 0) {
+            checkExitCode();
+        }
+        return n;
+    }
+
+    // Closing the stream early (e.g. the job was cancelled) also stops the process,
+    // otherwise it would block forever trying to write to a pipe nobody reads.
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            destroy();
+        }
+    }
+
+    public void destroy() {
+        if (process.isAlive()) {
+            process.destroyForcibly();
+        }
+    }
+
+    private void checkExitCode() throws IOException {
+        try {
+            // The process closes its stdout right before exiting, so this normally returns straight away.
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                throw new IOException(name + " did not exit after closing its output");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + name, e);
+        }
+
+        if (process.exitValue() != 0) {
+            throw new IOException(name + " failed with exit code " + process.exitValue());
+        }
+    }
+}
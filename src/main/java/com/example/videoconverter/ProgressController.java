@@ -1,10 +1,18 @@
 package com.example.videoconverter;
 
-import org.springframework.core.io.FileSystemResource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
-import java.io.File;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 // This controller handles all the client-side polling for progress and the final download requests.
 // I'm using @RestController because it's designed to return data, like the JSON progress updates.
@@ -13,13 +21,22 @@ public class ProgressController {
 
     // I need the ProgressService to get the status of the ongoing conversion jobs.
     private final ProgressService progressService;
+    private final ProgressStreamService progressStreamService;
+    private final RangeDownloadService rangeDownloadService;
+    private final ProgressiveStreamService progressiveStreamService;
 
     // Spring injects the ProgressService for me here.
-    public ProgressController(ProgressService progressService) {
+    public ProgressController(ProgressService progressService, ProgressStreamService progressStreamService,
+                              RangeDownloadService rangeDownloadService,
+                              ProgressiveStreamService progressiveStreamService) {
         this.progressService = progressService;
+        this.progressStreamService = progressStreamService;
+        this.rangeDownloadService = rangeDownloadService;
+        this.progressiveStreamService = progressiveStreamService;
     }
 
-    // This is the endpoint my frontend JavaScript polls every couple of seconds.
+    // This endpoint returns the current status of a job once. My frontend now uses the event stream below,
+    // but this is still handy for scripts and for checking on a job by hand.
     // The {jobId} in the path is a variable that holds the unique ID for the conversion.
     @GetMapping("/progress/{jobId}")
     public ResponseEntity<Map<String, Object>> getProgress(@PathVariable String jobId) {
@@ -31,42 +48,73 @@ public class ProgressController {
             return ResponseEntity.notFound().build();
         }
 
-        // I return a JSON object with both the progress percentage and the final filename.
-        // My JavaScript uses this to update the progress bar.
-        // I'm now using the public getter methods to access the private fields.
-        return ResponseEntity.ok(Map.of(
-                "progress", status.getProgress(),
-                "fileName", status.getFileName()
-        ));
+        // I return a JSON object with the progress percentage, the final filename and the
+        // conversion path (remux or transcode), the same thing the event stream sends.
+        return ResponseEntity.ok(ProgressStreamService.snapshot(jobId, status));
+    }
+
+    // This is the endpoint my frontend listens to. It's a server-sent event stream that gets a "progress" event
+    // whenever the job changes, and ends with a "completed" event (with the download URL) or a "failed" one.
+    @GetMapping(value = "/progress/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamProgress(@PathVariable String jobId) {
+        if (progressService.getJobStatus(jobId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(progressStreamService.subscribe(List.of(jobId)));
+    }
+
+    // The same events for many jobs over one connection, e.g. /progress/events?jobs=id1,id2.
+    // Every event carries its jobId, and the stream ends once all of the jobs have finished.
+    @GetMapping(value = "/progress/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamProgress(@RequestParam("jobs") List<String> jobIds) {
+        List<String> knownJobs = jobIds.stream()
+                .filter(jobId -> progressService.getJobStatus(jobId) != null)
+                .distinct()
+                .toList();
+        if (knownJobs.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(progressStreamService.subscribe(knownJobs));
     }
 
     // This is the endpoint the browser is redirected to when the conversion is 100% complete.
+    // Downloads can be resumed or split with Range requests, and repeated until the job is evicted.
     @GetMapping("/download/{jobId}")
-    public ResponseEntity<FileSystemResource> downloadFile(@PathVariable String jobId) {
+    public void downloadFile(@PathVariable String jobId, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         ProgressService.JobStatus status = progressService.getJobStatus(jobId);
 
         // I do a quick check to make sure the job actually exists and is fully complete before trying to send the file.
         // I'm using the getter methods here as well.
-        if (status == null || status.getProgress() < 100 || status.getFilePath() == null) {
-            return ResponseEntity.notFound().build();
+        if (status == null || status.getState() != JobState.DONE) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
 
-        File file = new File(status.getFilePath());
+        Path file = Path.of(status.getFilePath());
+        if (!Files.isRegularFile(file)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
         String filePath = status.getFilePath();
 
-        // I get the file extension (like ".mp3") from the temporary file's path.
+        // I get the file extension (like ".mp3") from the stored file's path.
         String extension = filePath.substring(filePath.lastIndexOf("."));
 
         // I create the final, filename by combining the stored name (e.g., "My Video") with the extension.
         String finalFileName = status.getFileName() + extension;
 
-        // After getting all the info I need, I remove the job to keep my service clean.
-        progressService.removeJob(jobId);
+        // I keep the job after the download, so the link still works if the browser asks again (e.g. a retried
+        // or resumed download). The ProgressService evicts it and deletes the file once its TTL has passed.
+        // A finished job doesn't change any more, so its last update is when it finished.
+        rangeDownloadService.send(request, response, file, finalFileName, jobId, status.getUpdatedAt(),
+                progressService.getExpiresAt(status));
+    }
 
-        // I return the file. The "Content-Disposition" header is what tells the browser
-        // to treat this as a download and what to name the file.
-        return ResponseEntity.ok()
-                .header("Content-Disposition", "attachment; filename=\"" + finalFileName + "\"")
-                .body(new FileSystemResource(file));
+    // The output while it's still being converted, for playing or saving it before the job is done.
+    // See ProgressiveStreamService for which outputs can be followed like this.
+    @GetMapping("/stream/{jobId}")
+    public Callable<ResponseEntity<StreamingResponseBody>> streamOutput(@PathVariable String jobId) {
+        return progressiveStreamService.stream(jobId);
     }
 }
@@ -1,81 +1,445 @@
 package com.example.videoconverter;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 // This service is responsible for tracking the status of all active conversion jobs.
-// It's a central place to store progress, final file paths, and filenames.
+// It's a central place to store progress, final file paths, and filenames. The jobs themselves are kept in a
+// JobStore: in memory by default, or in a directory several instances share (see JobStore).
+// Finished jobs don't stay here forever: once they're older than the TTL, or there are too many of them,
+// they're evicted and their output files are deleted. (The result cache keeps its own link to each output,
+// so deleting the job's copy never breaks the cache.)
 @Service
 public class ProgressService {
 
-    // I'm using a ConcurrentHashMap because it's thread-safe, which is essential since
-    // conversions run on background threads (@Async) while the main thread might be checking the status.
-    private final Map<String, JobStatus> jobs = new ConcurrentHashMap<>();
+    // These describe how a job's output is being produced, so the frontend can show it.
+    // "remux" means the packets are copied as-is, "transcode" means every frame is decoded and encoded,
+    // "parallel" is a transcode of a long video split into segments that are encoded at the same time,
+    // and "cached" means the result of an identical earlier conversion was reused.
+    public static final String MODE_PENDING = "pending";
+    public static final String MODE_REMUX = "remux";
+    public static final String MODE_TRANSCODE = "transcode";
+    public static final String MODE_PARALLEL = "parallel";
+    public static final String MODE_CACHED = "cached";
+
+    // Where a job's input comes from: a normal form upload, a streaming upload or a YouTube link.
+    // The metrics are tagged with it, since each kind spends its time differently.
+    public static final String SOURCE_UPLOAD = "upload";
+    public static final String SOURCE_STREAM = "stream";
+    public static final String SOURCE_YOUTUBE = "youtube";
+
+    // Updates only ever go to local jobs, the ones this instance runs; reads can be about any job in the store.
+    private final JobStore store;
+
+    // The jobs whose status has changed since the ProgressStreamService last pushed updates.
+    // A job that changes several times in between ends up here once, so its subscribers get one event with the latest state.
+    private final Set<String> changedJobs = ConcurrentHashMap.newKeySet();
+
+    private final long ttlMillis;
+    private final long queuedTtlMillis;
+    private final int maxEntries;
+
+    public ProgressService(JobStore store,
+                           MeterRegistry meterRegistry,
+                           @Value("${converter.jobs.ttl:1h}") Duration ttl,
+                           @Value("${converter.jobs.queued-ttl:6h}") Duration queuedTtl,
+                           @Value("${converter.jobs.max-entries:10000}") int maxEntries) {
+        this.store = store;
+        this.ttlMillis = ttl.toMillis();
+        this.queuedTtlMillis = queuedTtl.toMillis();
+        this.maxEntries = maxEntries;
+
+        // One gauge per state, e.g. how many jobs are converting right now, plus the disk space held by finished outputs.
+        // With a shared store these count this instance's own jobs, so the instances' numbers add up.
+        for (JobState state : JobState.values()) {
+            Gauge.builder("converter.jobs", this, service -> service.countJobs(state))
+                    .description("Jobs currently tracked, by state")
+                    .tag("state", state.label())
+                    .register(meterRegistry);
+        }
+        Gauge.builder("converter.jobs.retained.bytes", this, ProgressService::getRetainedBytes)
+                .description("Size of the finished outputs that are still waiting to be downloaded or evicted")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
 
     // This creates a new entry in my map to start tracking a new job.
-    public void createJob(String jobId) {
-        jobs.put(jobId, new JobStatus());
+    public void createJob(String jobId, String source) {
+        store.create(jobId, new JobStatus(source));
+        int local = store.localJobs().size();
+        if (local > maxEntries) {
+            evictOldestFinishedJobs(local - maxEntries);
+        }
     }
 
     // This updates the progress percentage for a given job.
+    // A negative value means the job failed. Once a job has ended I ignore any late updates from the worker thread.
+    // Progress only ever moves forward, so when two things report progress for the same job,
+    // like the upload counter and the conversion loop, the bar never jumps backwards.
+    // The value is scaled into the job's current phase range, see setPhaseRange below.
     public void setProgress(String jobId, int progress) {
-        JobStatus status = jobs.get(jobId);
+        JobStatus status = store.local(jobId);
+        if (status == null) {
+            return;
+        }
+        if (progress < 0) {
+            if (status.finish(JobState.FAILED)) {
+                changed(jobId, status);
+            }
+            return;
+        }
+        if (status.getState().isTerminal()) {
+            return;
+        }
+
+        PhaseRange phase = status.phase;
+        int scaled = phase.start() + progress * (phase.end() - phase.start()) / 100;
+        if (status.advanceProgress(scaled)) {
+            changed(jobId, status);
+        }
+    }
+
+    // Some jobs have more than one step, e.g. receiving an upload and then converting it.
+    // This maps the 0-100 reported by the next step onto part of the overall bar, e.g. 40 to 100.
+    public void setPhaseRange(String jobId, int start, int end) {
+        JobStatus status = store.local(jobId);
         if (status != null) {
-            status.setProgress(progress);
+            status.phase = new PhaseRange(start, end);
+            store.save(jobId, status);
+        }
+    }
+
+    // This moves a running job to its next stage, e.g. DOWNLOADING or CONVERTING. Moves the state machine
+    // doesn't allow (like anything out of a finished state) are ignored. Use setJobCompleted, setProgress(-1)
+    // and cancelJob to end a job.
+    public void setJobState(String jobId, JobState state) {
+        JobStatus status = store.local(jobId);
+        if (status != null && !state.isTerminal() && status.moveTo(state)) {
+            changed(jobId, status);
         }
     }
 
     // This marks a job as complete and stores the path to the final converted file.
-    public void setJobCompleted(String jobId, String filePath) {
-        JobStatus status = jobs.get(jobId);
-        if (status != null) {
-            status.setProgress(100);
-            status.setFilePath(filePath);
+    // If the job has ended in the meantime (cancelled, say), nothing would ever point at the file again, so it's
+    // deleted and I return false.
+    public boolean setJobCompleted(String jobId, String filePath) {
+        JobStatus status = store.local(jobId);
+        if (status == null) {
+            return false;
         }
+        if (status.complete(filePath)) {
+            changed(jobId, status);
+            return true;
+        }
+        new File(filePath).delete();
+        return false;
     }
 
     // This is the method the YoutubeController uses to save the video's title.
     public void setJobFileName(String jobId, String fileName) {
-        JobStatus status = jobs.get(jobId);
+        JobStatus status = store.local(jobId);
         if (status != null) {
-            status.setFileName(fileName);
+            status.fileName = fileName;
+            status.touch();
+            changed(jobId, status);
+        }
+    }
+
+    // The ConversionService calls this once it has probed the input and picked a conversion path.
+    public void setJobMode(String jobId, String mode) {
+        JobStatus status = store.local(jobId);
+        if (status != null) {
+            status.mode = mode;
+            status.touch();
+            changed(jobId, status);
+        }
+    }
+
+    // This flags a job as cancelled. It returns false if the job doesn't exist or has already
+    // finished, since there's nothing left to cancel in that case.
+    public boolean cancelJob(String jobId) {
+        JobStatus status = store.local(jobId);
+        if (status == null) {
+            // Another instance runs it, or it's waiting in the shared queue. Whoever runs it does the cancelling.
+            if (!store.requestCancel(jobId)) {
+                return false;
+            }
+            changedJobs.add(jobId);
+            return true;
+        }
+        if (!status.finish(JobState.CANCELLED)) {
+            return false;
+        }
+        changed(jobId, status);
+        return true;
+    }
+
+    public boolean isCancelled(String jobId) {
+        JobStatus status = store.get(jobId);
+        return status != null && status.isCancelled();
+    }
+
+    // This hands over (and forgets) the set of jobs that have changed since the last call.
+    // A job that changes again while the caller is busy is simply picked up by the next call.
+    public Set<String> drainChangedJobs() {
+        Set<String> drained = new HashSet<>();
+        for (Iterator<String> it = changedJobs.iterator(); it.hasNext(); ) {
+            drained.add(it.next());
+            it.remove();
+        }
+        return drained;
+    }
+
+    public String getJobSource(String jobId) {
+        JobStatus status = store.get(jobId);
+        return (status != null) ? status.getSource() : null;
+    }
+
+    // The output file of a running job, once it's safe to read while it's still being written (see
+    // ConversionService.publishLiveOutput). Jobs whose output only makes sense once it's finished never get one.
+    public void setJobLiveOutput(String jobId, String path) {
+        JobStatus status = store.local(jobId);
+        if (status != null) {
+            status.liveOutputPath = path;
+            store.save(jobId, status);
         }
     }
 
     // This is the method that your ConversionService needs to get the saved title.
     public String getJobFileName(String jobId) {
-        JobStatus status = jobs.get(jobId);
+        JobStatus status = store.get(jobId);
         return (status != null) ? status.getFileName() : null;
     }
 
     // This method is used by the frontend to poll for the current status of a job.
+    // A job that runs on another instance comes back as a snapshot, so ask again for newer news.
     public JobStatus getJobStatus(String jobId) {
-        return jobs.get(jobId);
+        return store.get(jobId);
     }
 
-    // This is the new method that your ProgressController needs.
-    // Once a file has been downloaded, I call this to remove the job from the map to keep things clean.
+    // When a finished job and its output will be evicted, as epoch milliseconds. Until then the output can be
+    // downloaded as often as needed.
+    public long getExpiresAt(JobStatus status) {
+        return status.getUpdatedAt() + ttlMillis;
+    }
+
+    // This forgets a job without touching its output, e.g. when it was rejected before it really started.
     public void removeJob(String jobId) {
-        jobs.remove(jobId);
+        store.remove(jobId);
+    }
+
+    // The other instances' changes to the shared store arrive here, so the event streams on this instance
+    // see them too. With the in-memory store there's never anything to pick up.
+    @Scheduled(fixedDelayString = "${converter.jobstore.poll-interval-ms:500}")
+    public void pollStoreChanges() {
+        changedJobs.addAll(store.pollChanges());
+    }
+
+    // Every minute I drop the jobs that finished longer than the TTL ago, along with their output files.
+    // Jobs that are still running are never evicted, however long they take. With a shared store every instance
+    // does this for all the jobs, so the jobs of an instance that has been shut down are cleaned up as well.
+    // A job that has sat in QUEUED for longer than the queued TTL is never going to start (e.g. a streaming upload
+    // whose body never came, or an instance that went away), so it's cancelled and then expires like any other.
+    // Cancelling rather than failing it means a worker that does get to it after all skips it.
+    @Scheduled(fixedDelayString = "${converter.jobs.eviction-interval-ms:60000}")
+    public void evictExpiredJobs() {
+        evictExpiredJobs(System.currentTimeMillis());
+    }
+
+    // The tests pass the time in, so they don't have to wait for jobs to age.
+    void evictExpiredJobs(long now) {
+        long cutoff = now - ttlMillis;
+        long queuedCutoff = now - queuedTtlMillis;
+        for (String jobId : List.copyOf(store.jobIds())) {
+            JobStatus status = store.get(jobId);
+            if (status == null) {
+                continue;
+            }
+            if (status.getState().isTerminal() && status.getUpdatedAt() < cutoff) {
+                evict(jobId, status);
+            } else if (status.getState() == JobState.QUEUED && status.getUpdatedAt() < queuedCutoff) {
+                abandon(jobId, status);
+            }
+        }
+    }
+
+    // A local job can be cancelled in place. One that isn't local to anybody any more is simply removed.
+    private void abandon(String jobId, JobStatus status) {
+        JobStatus local = store.local(jobId);
+        if (local == null) {
+            evict(jobId, status);
+        } else if (local.finish(JobState.CANCELLED)) {
+            changed(jobId, local);
+        }
+    }
+
+    // When there are more jobs than allowed, the ones that finished first go first.
+    private void evictOldestFinishedJobs(int count) {
+        List<Map.Entry<String, JobStatus>> finished = store.localJobs().entrySet().stream()
+                .filter(entry -> entry.getValue().getState().isTerminal())
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().getUpdatedAt()))
+                .limit(count)
+                .toList();
+        for (Map.Entry<String, JobStatus> entry : finished) {
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void evict(String jobId, JobStatus status) {
+        // Only one caller gets true from remove, so only one thread (or instance) deletes the file.
+        if (store.remove(jobId) && status.getFilePath() != null) {
+            new File(status.getFilePath()).delete();
+        }
+    }
+
+    // Every change to a local job goes through here, so the store can publish it and subscribers get an event.
+    private void changed(String jobId, JobStatus status) {
+        store.save(jobId, status);
+        changedJobs.add(jobId);
+    }
+
+    private long countJobs(JobState state) {
+        return store.localJobs().values().stream().filter(status -> status.getState() == state).count();
+    }
+
+    public long getRetainedBytes() {
+        return store.localJobs().values().stream()
+                .filter(status -> status.getState() == JobState.DONE)
+                .mapToLong(status -> status.outputBytes)
+                .sum();
+    }
+
+    // The part of the progress bar the current step of a job reports into. It's a record so both ends
+    // are always read together.
+    private record PhaseRange(int start, int end) {
     }
 
     // This is a simple data-holder class to keep all the information
-    // about a single job organised in one place.
+    // about a single job organised in one place. Every field is written from worker threads and read from
+    // web threads, so they're all atomics or volatile.
     public static class JobStatus {
-        private int progress = 0;
-        private String filePath;
-        private String fileName;
+        private final String source;
+        private final AtomicReference<JobState> state = new AtomicReference<>(JobState.QUEUED);
+        private final AtomicInteger progress = new AtomicInteger();
+        private volatile String filePath;
+        private volatile String fileName;
+        private volatile String liveOutputPath;
+        private volatile String mode = MODE_PENDING;
+        private volatile PhaseRange phase = new PhaseRange(0, 100);
+        private volatile long outputBytes;
+        private volatile long updatedAt = System.currentTimeMillis();
+
+        JobStatus(String source) {
+            this.source = source;
+        }
 
-        // Standard getters and setters for the job properties.
-        public int getProgress() { return progress; }
-        public void setProgress(int progress) { this.progress = progress; }
+        // What a shared JobStore writes for a job, and reads back with restore.
+        record Saved(String source, JobState state, int progress, String filePath, String fileName,
+                     String liveOutputPath, String mode, int phaseStart, int phaseEnd, long outputBytes,
+                     long updatedAt) {
+        }
 
-        public String getFilePath() { return filePath; }
-        public void setFilePath(String filePath) { this.filePath = filePath; }
+        Saved save() {
+            PhaseRange currentPhase = phase;
+            return new Saved(source, state.get(), progress.get(), filePath, fileName, liveOutputPath, mode,
+                    currentPhase.start(), currentPhase.end(), outputBytes, updatedAt);
+        }
+
+        static JobStatus restore(Saved saved) {
+            JobStatus status = new JobStatus(saved.source());
+            status.state.set(saved.state());
+            status.progress.set(saved.progress());
+            status.filePath = saved.filePath();
+            status.fileName = saved.fileName();
+            status.liveOutputPath = saved.liveOutputPath();
+            status.mode = saved.mode();
+            status.phase = new PhaseRange(saved.phaseStart(), saved.phaseEnd());
+            status.outputBytes = saved.outputBytes();
+            status.updatedAt = saved.updatedAt();
+            return status;
+        }
+
+        // Moves to a non-terminal state if the state machine allows it.
+        boolean moveTo(JobState next) {
+            JobState current;
+            do {
+                current = state.get();
+                if (current == next) {
+                    return false;
+                }
+                if (!current.canMoveTo(next)) {
+                    return false;
+                }
+            } while (!state.compareAndSet(current, next));
+            touch();
+            return true;
+        }
 
+        // Ends the job. Only the first of several racing endings (e.g. a cancel and a completion) wins.
+        boolean finish(JobState end) {
+            return moveTo(end);
+        }
+
+        // Ends the job as DONE with its output. The path has to be in place before the state says DONE, because
+        // readers check the state first; if another ending wins, the path and size are taken back out.
+        boolean complete(String path) {
+            filePath = path;
+            outputBytes = new File(path).length();
+            if (finish(JobState.DONE)) {
+                return true;
+            }
+            filePath = null;
+            outputBytes = 0;
+            return false;
+        }
+
+        boolean advanceProgress(int value) {
+            int current;
+            do {
+                current = progress.get();
+                if (value <= current) {
+                    return false;
+                }
+            } while (!progress.compareAndSet(current, value));
+            touch();
+            return true;
+        }
+
+        void touch() {
+            updatedAt = System.currentTimeMillis();
+        }
+
+        // Getters for the job properties. Progress is 0-100 while a job runs, 100 when it's done and -1 if it
+        // failed or was cancelled. I derive the last two from the state, so they can never disagree with it.
+        public JobState getState() { return state.get(); }
+        public int getProgress() {
+            return switch (state.get()) {
+                case DONE -> 100;
+                case FAILED, CANCELLED -> -1;
+                default -> progress.get();
+            };
+        }
+        public String getFilePath() { return filePath; }
         public String getFileName() { return fileName; }
-        public void setFileName(String fileName) { this.fileName = fileName; }
+        public String getLiveOutputPath() { return liveOutputPath; }
+        public String getMode() { return mode; }
+        public String getSource() { return source; }
+        public boolean isCancelled() { return state.get() == JobState.CANCELLED; }
+        public long getUpdatedAt() { return updatedAt; }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+package com.example.videoconverter;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// This service pushes job progress to the browser with server-sent events, instead of the browser polling for it.
+// Every few hundred milliseconds it takes the jobs that changed from the ProgressService and sends each subscriber
+// one event per job with its latest state. Jobs that haven't changed don't cost anything.
+@Service
+public class ProgressStreamService {
+
+    public static final String EVENT_PROGRESS = "progress";
+    public static final String EVENT_COMPLETED = "completed";
+    public static final String EVENT_FAILED = "failed";
+
+    // An open event stream is closed after an hour. The browser's EventSource reconnects by itself,
+    // and gets the current state straight away when it does.
+    private static final long STREAM_TIMEOUT_MS = 60 * 60 * 1000L;
+
+    private final ProgressService progressService;
+
+    // Which subscribers are following which job. One subscriber can follow several jobs over one connection.
+    private final Map<String, Set<Subscription>> subscriptionsByJob = new ConcurrentHashMap<>();
+
+    public ProgressStreamService(ProgressService progressService) {
+        this.progressService = progressService;
+    }
+
+    // This opens an event stream following the given jobs. The stream closes itself once all of them have finished.
+    public SseEmitter subscribe(Collection<String> jobIds) {
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MS);
+        Subscription subscription = new Subscription(emitter, ConcurrentHashMap.newKeySet());
+        subscription.remainingJobs().addAll(jobIds);
+
+        for (String jobId : jobIds) {
+            subscriptionsByJob.computeIfAbsent(jobId, id -> ConcurrentHashMap.newKeySet()).add(subscription);
+        }
+        emitter.onCompletion(() -> unsubscribe(subscription));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unsubscribe(subscription));
+
+        // I send the current state right away, so the client doesn't have to wait for the next change.
+        for (String jobId : jobIds) {
+            push(jobId, subscription);
+        }
+        return emitter;
+    }
+
+    // This runs on Spring's scheduler thread. Changes that happen between two runs are coalesced into one event.
+    @Scheduled(fixedDelayString = "${converter.progress.push-interval-ms:250}")
+    public void pushChanges() {
+        for (String jobId : progressService.drainChangedJobs()) {
+            Set<Subscription> subscriptions = subscriptionsByJob.get(jobId);
+            if (subscriptions == null) {
+                continue;
+            }
+            for (Subscription subscription : subscriptions) {
+                push(jobId, subscription);
+            }
+        }
+    }
+
+    // This builds the JSON for one job. The /progress/{jobId} endpoint returns the same thing.
+    public static Map<String, Object> snapshot(String jobId, ProgressService.JobStatus status) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("jobId", jobId);
+        snapshot.put("state", status.getState().label());
+        snapshot.put("progress", status.getProgress());
+        snapshot.put("fileName", status.getFileName());
+        snapshot.put("mode", status.getMode());
+        snapshot.put("cancelled", status.isCancelled());
+        if (EVENT_COMPLETED.equals(eventName(status))) {
+            snapshot.put("downloadUrl", "/download/" + jobId);
+        }
+        return snapshot;
+    }
+
+    private static String eventName(ProgressService.JobStatus status) {
+        return switch (status.getState()) {
+            case DONE -> EVENT_COMPLETED;
+            case FAILED, CANCELLED -> EVENT_FAILED;
+            default -> EVENT_PROGRESS;
+        };
+    }
+
+    private void push(String jobId, Subscription subscription) {
+        // The first push (on the web thread) and a scheduled one can race, so each subscription sends one event
+        // at a time, and never anything for a job it has already seen finish.
+        synchronized (subscription) {
+            if (!subscription.remainingJobs().contains(jobId)) {
+                return;
+            }
+
+            ProgressService.JobStatus status = progressService.getJobStatus(jobId);
+            if (status == null) {
+                // The job has been downloaded and removed, so there's nothing more to report about it.
+                finishJob(jobId, subscription);
+                return;
+            }
+
+            String event = eventName(status);
+            try {
+                subscription.emitter().send(SseEmitter.event().name(event).data(snapshot(jobId, status)));
+            } catch (IOException | IllegalStateException e) {
+                // The browser has gone away.
+                unsubscribe(subscription);
+                return;
+            }
+
+            if (!EVENT_PROGRESS.equals(event)) {
+                finishJob(jobId, subscription);
+            }
+        }
+    }
+
+    private void finishJob(String jobId, Subscription subscription) {
+        subscription.remainingJobs().remove(jobId);
+        removeFromJob(jobId, subscription);
+        if (subscription.remainingJobs().isEmpty()) {
+            subscription.emitter().complete();
+        }
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        for (String jobId : subscription.remainingJobs()) {
+            removeFromJob(jobId, subscription);
+        }
+        subscription.remainingJobs().clear();
+    }
+
+    private void removeFromJob(String jobId, Subscription subscription) {
+        subscriptionsByJob.computeIfPresent(jobId, (id, subscriptions) -> {
+            subscriptions.remove(subscription);
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+    }
+
+    // One open event stream and the jobs it's still waiting on. This isn't a record on purpose: the set changes
+    // while the subscription sits in other sets, so it has to be compared by identity, not by its contents.
+    private static final class Subscription {
+        private final SseEmitter emitter;
+        private final Set<String> remainingJobs;
+
+        Subscription(SseEmitter emitter, Set<String> remainingJobs) {
+            this.emitter = emitter;
+            this.remainingJobs = remainingJobs;
+        }
+
+        SseEmitter emitter() { return emitter; }
+        Set<String> remainingJobs() { return remainingJobs; }
+    }
+}
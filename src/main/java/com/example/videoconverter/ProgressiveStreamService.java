@@ -0,0 +1,130 @@
+package com.example.videoconverter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+
+// This sends a job's output while it's still being written, like "tail -f", so playback or saving can start
+// within seconds instead of after the whole conversion. It works for every output the ConversionService marks as
+// live (the audio formats, and MP4 when the job was started with progressive=true). Any other job is sent once it's
+// done, the same as the download.
+//
+// A WAV header normally holds the file size, which isn't known yet. FFmpeg writes 0xFFFFFFFF there until the end,
+// the placeholder players take as "read until the stream ends", and by the time it fills in the real sizes
+// the header has long been sent.
+//
+// The length isn't known up front either, so the response is chunked. If the job fails or is cancelled halfway,
+// I break off the response instead of ending it cleanly, so the client can tell the file is incomplete.
+@Service
+public class ProgressiveStreamService {
+
+    private final ProgressService progressService;
+    private final long pollIntervalMillis;
+
+    public ProgressiveStreamService(ProgressService progressService,
+                                    @Value("${converter.stream.poll-interval-ms:200}") long pollIntervalMillis) {
+        this.progressService = progressService;
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    // The output as a streamed response. Waiting for the output and then following it both happen on the async
+    // executor (see AsyncConfig) rather than the request thread, since this takes as long as the conversion does.
+    public Callable<ResponseEntity<StreamingResponseBody>> stream(String jobId) {
+        return () -> {
+            Path file = awaitOutput(jobId);
+            if (file == null) {
+                // There's no such job, or it failed or was cancelled before it wrote anything.
+                return ResponseEntity.notFound().build();
+            }
+
+            // By now a YouTube job has its real title.
+            String fileName = progressService.getJobFileName(jobId) + fileExtension(file);
+            return ResponseEntity.ok()
+                    .contentType(MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM))
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            RangeDownloadService.contentDisposition(ContentDisposition.inline(), fileName))
+                    .cacheControl(CacheControl.noStore())
+                    .body(out -> tail(file, jobId, out));
+        };
+    }
+
+    // Waits until the output can be read: the live file once the recorder has created it, or the finished file.
+    // I ask for the job every time, since a job that runs on another instance comes back as a snapshot.
+    private Path awaitOutput(String jobId) throws InterruptedException {
+        while (true) {
+            ProgressService.JobStatus status = progressService.getJobStatus(jobId);
+            if (status == null) {
+                return null;
+            }
+            JobState state = status.getState();
+            if (state == JobState.DONE) {
+                return Path.of(status.getFilePath());
+            }
+            if (state.isTerminal()) {
+                return null;
+            }
+            String live = status.getLiveOutputPath();
+            if (live != null && Files.exists(Path.of(live))) {
+                return Path.of(live);
+            }
+            Thread.sleep(pollIntervalMillis);
+        }
+    }
+
+    private void tail(Path file, String jobId, OutputStream response) throws IOException {
+        // A job that fails deletes its output, but the channel I already have open keeps reading it.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response);
+            long position = 0;
+            while (true) {
+                // I read the state before the size: once the job is done, the file is complete, so that last
+                // size covers everything.
+                JobState state = currentState(jobId);
+                long size = channel.size();
+                if (position < size) {
+                    position += channel.transferTo(position, size - position, out);
+                    response.flush();
+                    continue;
+                }
+                if (state == JobState.DONE) {
+                    return;
+                }
+                if (state.isTerminal()) {
+                    throw new IOException("Job " + jobId + " ended as " + state.label() + " while streaming");
+                }
+                Thread.sleep(pollIntervalMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming " + jobId);
+        }
+    }
+
+    // A job that has disappeared was evicted, which only happens to jobs that have ended.
+    private JobState currentState(String jobId) {
+        ProgressService.JobStatus status = progressService.getJobStatus(jobId);
+        return status != null ? status.getState() : JobState.FAILED;
+    }
+
+    private static String fileExtension(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(name.lastIndexOf('.'));
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.videoconverter;
+
+// I throw this when the conversion queue is full. It carries enough information
+// for the client to know roughly where it would be in line and when to try again.
+public class QueueFullException extends RuntimeException {
+
+    private final int queuePosition;
+    private final long retryAfterSeconds;
+
+    public QueueFullException(int queuePosition, long retryAfterSeconds) {
+        super("The conversion queue is full. Please try again shortly.");
+        this.queuePosition = queuePosition;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getQueuePosition() { return queuePosition; }
+
+    public long getRetryAfterSeconds() { return retryAfterSeconds; }
+}
@@ -0,0 +1,195 @@
+package com.example.videoconverter;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// This sends finished outputs with the headers download managers need to resume and split a download:
+// Accept-Ranges, ETag, Last-Modified and Content-Length, answering a Range request with just that part (206).
+// A download of a 1GB file that breaks off at 900MB only has to fetch the last 100MB again.
+//
+// The bytes never pass through the heap. On Tomcat I hand the file to the connector's sendfile, which writes it
+// to the socket with FileChannel.transferTo once the request is done; anywhere else I call transferTo myself.
+@Service
+public class RangeDownloadService {
+
+    // The request attributes of Tomcat's sendfile support, the same ones its DefaultServlet uses.
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // A part of the file, both ends inclusive like in the Range header.
+    private record ByteRange(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    // Marks a Range header that I'm ignoring, so the whole file is sent as a normal 200.
+    private static final ByteRange FULL = new ByteRange(0, -1);
+
+    // Sends the file as an attachment called downloadName. The validators come from the job rather than the file:
+    // an output is a hard link that the result cache shares, so the file's own modification time isn't the job's.
+    // An output never changes once its job is done, so the jobId and the size identify it, and lastModified is when
+    // the job finished. expiresAt is when the file will be deleted, so clients (and anything caching in between)
+    // know how long they can come back for the rest of it.
+    public void send(HttpServletRequest request, HttpServletResponse response, Path file, String downloadName,
+                     String jobId, long lastModified, long expiresAt) throws IOException {
+        long size = Files.size(file);
+        String etag = "\"" + jobId + "-" + Long.toHexString(size) + "\"";
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setDateHeader(HttpHeaders.EXPIRES, expiresAt);
+
+        if (etagMatches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(MediaTypeFactory.getMediaType(downloadName)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM).toString());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                contentDisposition(ContentDisposition.attachment(), downloadName));
+
+        ByteRange range = new ByteRange(0, size - 1);
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && ifRangeMatches(request, etag, lastModified)) {
+            ByteRange requested = parseRange(rangeHeader, size);
+            if (requested == null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (requested != FULL) {
+                range = requested;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE,
+                        "bytes " + range.start() + "-" + range.end() + "/" + size);
+            }
+        }
+        response.setContentLengthLong(range.length());
+
+        if ("HEAD".equals(request.getMethod()) || range.length() == 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toRealPath().toString());
+            request.setAttribute(SENDFILE_START, range.start());
+            request.setAttribute(SENDFILE_END, range.end() + 1);
+            return;
+        }
+        transfer(file, range, response);
+    }
+
+    // Video titles can be in any script; those names need the UTF-8 filename* form.
+    static String contentDisposition(ContentDisposition.Builder disposition, String fileName) {
+        if (StandardCharsets.US_ASCII.newEncoder().canEncode(fileName)) {
+            disposition.filename(fileName);
+        } else {
+            disposition.filename(fileName, StandardCharsets.UTF_8);
+        }
+        return disposition.build().toString();
+    }
+
+    // Without sendfile, transferTo still copies straight from the file into the response, in the JDK's own buffer.
+    private static void transfer(Path file, ByteRange range, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WritableByteChannel out = Channels.newChannel(response.getOutputStream())) {
+            long position = range.start();
+            long remaining = range.length();
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    // The file got shorter than its Content-Length, which only happens if it was deleted and replaced.
+                    throw new EOFException("Output ended early: " + file);
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    // Parses a single "bytes=start-end", "bytes=start-" or "bytes=-suffixLength" range. Returns FULL for anything
+    // I don't handle, such as several ranges at once (the RFC lets a server answer those with the whole file),
+    // and null if the range lies entirely outside the file.
+    private static ByteRange parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return FULL;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return FULL;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return null;
+                }
+                return new ByteRange(Math.max(0, size - suffix), size - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return FULL;
+            }
+            if (start >= size) {
+                return null;
+            }
+            return new ByteRange(start, Math.min(end, size - 1));
+        } catch (NumberFormatException e) {
+            return FULL;
+        }
+    }
+
+    // If-Range makes the Range conditional: a client resuming a download sends the ETag (or date) of the part it
+    // already has, and if the file has changed since then it gets the whole new file instead of a mismatched piece.
+    private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Only a strong comparison counts here, so a weak ETag never matches.
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) == lastModified / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.videoconverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// This stream lets FFmpeg read a live upload or pipe as if it were a file, as long as it only jumps back a little.
+// JavaCV implements every seek as reset() back to the mark, then skip() forward to the target offset, and it asks
+// for the total size by skipping to the end. On a normal BufferedInputStream that size check would swallow the whole
+// upload, so here I keep only the last few megabytes in a ring buffer and simply refuse the size check. FFmpeg then
+// treats the input as a stream of unknown length, which is exactly what it is.
+public class RewindableInputStream extends InputStream {
+
+    private final InputStream in;
+    private final byte[] ring;
+
+    // "highWater" is how many bytes I've pulled from the source so far, "position" is where the reader is.
+    // Everything between highWater - ring.length and highWater is still in the ring buffer.
+    private long highWater = 0;
+    private long position = 0;
+    private long markPosition = 0;
+
+    // JavaCV always calls reset() right before skip(), so I only move back once I see what comes next.
+    // That way a refused size check doesn't leave the reader back at the start of the file.
+    private boolean resetPending = false;
+
+    public RewindableInputStream(InputStream in, int rewindBytes) {
+        this.in = in;
+        this.ring = new byte[rewindBytes];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        applyPendingReset();
+        if (length == 0) {
+            return 0;
+        }
+
+        if (position < highWater) {
+            // Replaying bytes I've already seen from the ring buffer.
+            int ringIndex = (int) (position % ring.length);
+            int n = (int) Math.min(Math.min(length, highWater - position), ring.length - ringIndex);
+            System.arraycopy(ring, ringIndex, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        int n = in.read(buffer, offset, length);
+        if (n > 0) {
+            remember(buffer, offset, n);
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n == Long.MAX_VALUE) {
+            // This is JavaCV asking for the total size. I can't know it without reading everything, so I say no.
+            resetPending = false;
+            throw new IOException("The size of a live stream is unknown");
+        }
+
+        long start = resetPending ? markPosition : position;
+        resetPending = false;
+        long target = start + n;
+
+        if (target < highWater - ring.length) {
+            throw new IOException("Cannot seek back further than " + ring.length + " bytes in a live stream");
+        }
+
+        if (target <= highWater) {
+            position = target;
+            return target - start;
+        }
+
+        // Seeking forward past what I've read means reading (and remembering) the bytes in between.
+        position = highWater;
+        byte[] scratch = new byte[8192];
+        while (position < target) {
+            int read = read(scratch, 0, (int) Math.min(scratch.length, target - position));
+            if (read < 0) {
+                break;
+            }
+        }
+        return position - start;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markPosition = position;
+        resetPending = false;
+    }
+
+    @Override
+    public synchronized void reset() {
+        resetPending = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void applyPendingReset() throws IOException {
+        if (resetPending) {
+            resetPending = false;
+            if (markPosition < highWater - ring.length) {
+                throw new IOException("Cannot seek back further than " + ring.length + " bytes in a live stream");
+            }
+            position = markPosition;
+        }
+    }
+
+    private void remember(byte[] buffer, int offset, int length) {
+        for (int copied = 0; copied < length; ) {
+            int ringIndex = (int) (highWater % ring.length);
+            int n = Math.min(length - copied, ring.length - ringIndex);
+            System.arraycopy(buffer, offset + copied, ring, ringIndex, n);
+            copied += n;
+            highWater += n;
+        }
+    }
+}
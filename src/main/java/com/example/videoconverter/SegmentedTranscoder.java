@@ -0,0 +1,471 @@
+package com.example.videoconverter;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.stream.Stream;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_rescale_ts;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
+import static org.bytedeco.ffmpeg.global.avformat.AVIO_FLAG_WRITE;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FLAG_BACKWARD;
+import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_seek_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avformat.avio_closep;
+import static org.bytedeco.ffmpeg.global.avformat.avio_open;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_compare_ts;
+import static org.bytedeco.ffmpeg.global.avutil.av_q2d;
+
+// A single decode/encode loop only keeps about one core busy, which makes long videos slow.
+// For long inputs going to mp4, this service cuts the video into time ranges at keyframes and transcodes
+// each range on its own grabber/recorder pair, all at the same time on a fork-join pool. The audio track
+// is encoded once, in one piece, next to them (splitting it would put a gap of encoder padding at every cut).
+// Finally the pieces are joined into one mp4 by copying their packets, so nothing is encoded twice.
+// The point is to use cores that would otherwise sit idle, so a video is only split when the scheduler has workers
+// free, into no more segments than there are, and each segment decodes and encodes on a single thread.
+@Service
+public class SegmentedTranscoder {
+
+    // The video part of the job is this much of the progress bar; joining the pieces is the rest.
+    private static final int TRANSCODE_PROGRESS_END = 95;
+
+    private final ProgressService progressService;
+    private final boolean enabled;
+    private final long minDurationMicros;
+    private final int segments;
+    private final ForkJoinPool pool;
+
+    // How many of the scheduler's workers are free right now. The scheduler sets this when it starts; without one
+    // (in the tests and benchmarks) only the configured segment count applies.
+    private volatile IntSupplier idleWorkers = () -> Integer.MAX_VALUE;
+
+    public SegmentedTranscoder(ProgressService progressService,
+                               @Value("${converter.parallel.enabled:true}") boolean enabled,
+                               @Value("${converter.parallel.min-duration:10m}") Duration minDuration,
+                               @Value("${converter.parallel.segments:0}") int segments) {
+        this.progressService = progressService;
+        this.enabled = enabled;
+        this.minDurationMicros = minDuration.toNanos() / 1000;
+        // 0 means one segment per CPU core.
+        this.segments = segments > 0 ? segments : Runtime.getRuntime().availableProcessors();
+        // One thread per video segment, plus one for the audio track.
+        this.pool = new ForkJoinPool(this.segments + 1);
+    }
+
+    void useIdleWorkersOf(IntSupplier idleWorkers) {
+        this.idleWorkers = idleWorkers;
+    }
+
+    // This decides whether splitting is worth it. If it is, it returns where each segment starts, in microseconds
+    // from the start of the media, with Long.MAX_VALUE as the end of the last one. If not, it returns null and the
+    // caller transcodes as usual. The grabber must be started on a file. Looking for keyframes reads packets from it,
+    // so when I return null after looking I reopen it at the start; when I return segments it's only good for its
+    // metadata.
+    // The job's own worker runs one segment, and every idle worker can take one more. With none idle, splitting
+    // would only take cores away from the other jobs.
+    public List<Long> planSegments(FFmpegFrameGrabber grabber, String format) throws Exception {
+        if (!enabled || segments < 2 || !"mp4".equalsIgnoreCase(format) || !grabber.hasVideo()) {
+            return null;
+        }
+        int segments = (int) Math.min(this.segments, 1L + idleWorkers.getAsInt());
+        if (segments < 2) {
+            return null;
+        }
+        long duration = grabber.getLengthInTime();
+        if (duration < minDurationMicros) {
+            return null;
+        }
+
+        // I aim for equal time ranges, then move each cut back to the keyframe before it. A segment that starts
+        // on a keyframe doesn't have to decode anything it then throws away.
+        // The first keyframe isn't always at 0 (the container's start time can be before the first frame), and a cut
+        // there would only make an empty first segment.
+        long firstKeyframe = keyframeAtOrBefore(grabber, 0);
+        TreeSet<Long> starts = new TreeSet<>();
+        starts.add(0L);
+        for (int i = 1; i < segments; i++) {
+            long keyframe = keyframeAtOrBefore(grabber, duration * i / segments);
+            if (keyframe > 0 && keyframe > firstKeyframe) {
+                starts.add(keyframe);
+            }
+        }
+
+        // Videos with very few keyframes may not have enough places to cut.
+        if (starts.size() < 2) {
+            grabber.restart();
+            return null;
+        }
+        List<Long> boundaries = new ArrayList<>(starts);
+        boundaries.add(Long.MAX_VALUE);
+        return boundaries;
+    }
+
+    // This transcodes the input using the boundaries from planSegments and writes the joined result to output.
+    public void transcode(FFmpegFrameGrabber probe, File input, List<Long> boundaries, File output, String jobId,
+                          EncodingProfile profile) throws Exception {
+        ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+        long totalDuration = probe.getLengthInTime();
+        int[] size = profile.outputSize(probe.getImageWidth(), probe.getImageHeight());
+        VideoSettings video = new VideoSettings(size[0], size[1], probe.getFrameRate(), profile);
+        boolean hasAudio = probe.hasAudio();
+
+        Path workDir = Files.createTempDirectory("segments-");
+        try {
+            // If one segment fails, this tells the others to stop rather than finish work nobody will use.
+            AtomicBoolean failed = new AtomicBoolean();
+            LongAdder transcodedMicros = new LongAdder();
+
+            List<File> segmentFiles = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < boundaries.size() - 1; i++) {
+                File segmentFile = workDir.resolve("segment-" + i + ".mp4").toFile();
+                segmentFiles.add(segmentFile);
+                long start = boundaries.get(i);
+                long end = boundaries.get(i + 1);
+                tasks.add(() -> {
+                    transcodeSegment(input, start, end, segmentFile, video, job, failed, transcodedMicros, totalDuration, jobId);
+                    return null;
+                });
+            }
+
+            File audioFile = hasAudio ? workDir.resolve("audio.mp4").toFile() : null;
+            if (hasAudio) {
+                tasks.add(() -> {
+                    transcodeAudio(input, audioFile, profile, job, failed);
+                    return null;
+                });
+            }
+
+            awaitAll(pool.invokeAll(tasks));
+
+            checkCancelled(job, failed);
+            join(segmentFiles, audioFile, output);
+        } finally {
+            try (Stream<Path> files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // One video segment: every frame from start (inclusive) to end (exclusive) is decoded and encoded.
+    private void transcodeSegment(File input, long start, long end, File segmentFile, VideoSettings video,
+                                  ProgressService.JobStatus job, AtomicBoolean failed, LongAdder transcodedMicros,
+                                  long totalDuration, String jobId) throws Exception {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input);
+             FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(segmentFile, video.width(), video.height(), 0)) {
+            video.profile().applyTo(grabber);
+            // Every segment already has a core of its own, so more threads per segment would only oversubscribe.
+            grabber.setVideoOption("threads", "1");
+            grabber.start();
+            if (start > 0) {
+                // This seeks to the keyframe and decodes up to the start of my range.
+                grabber.setVideoTimestamp(start);
+            }
+            // Frame timestamps include the container's start time, while my range starts at the start of the media.
+            long startTime = startTime(grabber);
+
+            // These match the settings of the sequential transcode in the ConversionService.
+            recorder.setFormat("mp4");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+            recorder.setFrameRate(video.frameRate());
+            video.profile().applyTo(recorder);
+            recorder.setVideoOption("threads", "1");
+            recorder.start();
+
+            long lastTimestamp = start;
+            int lastReportedProgress = 0;
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null) {
+                checkCancelled(job, failed);
+                long timestamp = frame.timestamp - startTime;
+                if (timestamp >= end) {
+                    break;
+                }
+                if (timestamp < start) {
+                    continue;
+                }
+                recorder.record(frame);
+
+                // All segments add to the same counter, so the job gets one percentage for the whole video.
+                transcodedMicros.add(timestamp - lastTimestamp);
+                lastTimestamp = timestamp;
+                if (totalDuration > 0) {
+                    int progress = (int) (transcodedMicros.sum() * TRANSCODE_PROGRESS_END / totalDuration);
+                    if (progress > lastReportedProgress) {
+                        lastReportedProgress = progress;
+                        progressService.setProgress(jobId, Math.min(progress, TRANSCODE_PROGRESS_END));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            failed.set(true);
+            throw e;
+        }
+    }
+
+    // The whole audio track in one go. Audio is cheap next to video, so this is done long before the segments.
+    private void transcodeAudio(File input, File audioFile, EncodingProfile profile, ProgressService.JobStatus job,
+                                AtomicBoolean failed) throws Exception {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input)) {
+            grabber.start();
+            ConversionService.discardAllButAudio(grabber);
+            // Like the sequential transcode, I leave the codec to the mp4 default (AAC).
+            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(audioFile, 0, 0, grabber.getAudioChannels())) {
+                recorder.setFormat("mp4");
+                recorder.setSampleRate(grabber.getSampleRate());
+                recorder.setAudioBitrate(profile.audioBitrate());
+                recorder.start();
+
+                Frame frame;
+                while ((frame = grabber.grabSamples()) != null) {
+                    checkCancelled(job, failed);
+                    recorder.recordSamples(frame.sampleRate, frame.audioChannels, frame.samples);
+                }
+            }
+        } catch (Exception e) {
+            failed.set(true);
+            throw e;
+        }
+    }
+
+    // This writes the final mp4. The video packets of the segments are copied one after the other, each segment
+    // shifted to start where the previous one ended, and the audio packets are interleaved with them by time.
+    // I use the FFmpeg muxer directly here because the recorder can only copy packets from a single input.
+    private void join(List<File> segmentFiles, File audioFile, File output) throws Exception {
+        AVFormatContext out = new AVFormatContext(null);
+        check(avformat_alloc_output_context2(out, null, "mp4", output.getAbsolutePath()), "create the output");
+
+        List<PacketSource> sources = new ArrayList<>();
+        try {
+            sources.add(new PacketSource(segmentFiles));
+            if (audioFile != null) {
+                sources.add(new PacketSource(List.of(audioFile)));
+            }
+
+            List<AVStream> outStreams = new ArrayList<>();
+            for (PacketSource source : sources) {
+                AVStream stream = avformat_new_stream(out, null);
+                check(avcodec_parameters_copy(stream.codecpar(), source.inputStream().codecpar()), "copy the codec parameters");
+                stream.codecpar().codec_tag(0);
+                stream.time_base(source.inputStream().time_base());
+                outStreams.add(stream);
+            }
+
+            AVIOContext pb = new AVIOContext(null);
+            check(avio_open(pb, output.getAbsolutePath(), AVIO_FLAG_WRITE), "open the output");
+            out.pb(pb);
+            check(avformat_write_header(out, (AVDictionary) null), "write the header");
+
+            // The muxer may pick its own time bases while writing the header, so I read them afterwards.
+            for (int i = 0; i < sources.size(); i++) {
+                sources.get(i).connect(i, outStreams.get(i).time_base());
+            }
+
+            // I always write whichever packet comes first. That keeps the file interleaved, and it keeps the
+            // muxer from buffering a whole track while it waits for the other one.
+            while (true) {
+                PacketSource next = null;
+                for (PacketSource source : sources) {
+                    if (source.current() != null && (next == null || source.isBefore(next))) {
+                        next = source;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                check(av_interleaved_write_frame(out, next.current()), "write a packet");
+                next.advance();
+            }
+
+            check(av_write_trailer(out), "write the trailer");
+        } finally {
+            for (PacketSource source : sources) {
+                source.close();
+            }
+            if (out.pb() != null) {
+                avio_closep(out.pb());
+            }
+            avformat_free_context(out);
+        }
+    }
+
+    // This seeks to the keyframe at or before the given time and returns its timestamp, or -1 if there isn't one.
+    // Both are counted from the start of the media; FFmpeg counts from zero, which is earlier when the container
+    // has a start time (e.g. a stream that was cut from a longer one).
+    private long keyframeAtOrBefore(FFmpegFrameGrabber grabber, long micros) throws Exception {
+        AVFormatContext context = grabber.getFormatContext();
+        int videoStream = grabber.getVideoStream();
+        long startTime = startTime(grabber);
+        if (av_seek_frame(context, -1, micros + startTime, AVSEEK_FLAG_BACKWARD) < 0) {
+            return -1;
+        }
+
+        AVPacket packet;
+        while ((packet = grabber.grabPacket()) != null) {
+            boolean isKeyframe = packet.stream_index() == videoStream && (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+            long pts = packet.pts();
+            av_packet_unref(packet);
+            if (isKeyframe) {
+                if (pts == AV_NOPTS_VALUE) {
+                    return -1;
+                }
+                return (long) (pts * av_q2d(context.streams(videoStream).time_base()) * 1_000_000) - startTime;
+            }
+        }
+        return -1;
+    }
+
+    // The container's start time in microseconds, or 0 if it has none.
+    private static long startTime(FFmpegFrameGrabber grabber) {
+        long startTime = grabber.getFormatContext().start_time();
+        return startTime == AV_NOPTS_VALUE ? 0 : startTime;
+    }
+
+    private static void checkCancelled(ProgressService.JobStatus job, AtomicBoolean failed) {
+        if (failed.get() || (job != null && job.isCancelled())) {
+            throw new CancellationException("Job was cancelled");
+        }
+    }
+
+    // This waits for every task and rethrows the first real error. Tasks that only stopped because
+    // another one failed (or the job was cancelled) throw a CancellationException, which I only rethrow
+    // if there's nothing more useful.
+    private static void awaitAll(List<Future<Void>> futures) throws Exception {
+        Exception cancelled = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof CancellationException) && e.getCause() instanceof Exception cause) {
+                    throw cause;
+                }
+                cancelled = new CancellationException("Job was cancelled");
+            }
+        }
+        if (cancelled != null) {
+            throw cancelled;
+        }
+    }
+
+    private static void check(int result, String action) throws IOException {
+        if (result < 0) {
+            throw new IOException("Could not " + action + " while joining segments (error " + result + ")");
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private record VideoSettings(int width, int height, double frameRate, EncodingProfile profile) {
+    }
+
+    // This reads the packets of one track from one or more files, one file after the other. Each file's
+    // timestamps are moved into the output's time base and shifted to carry on from where the last file ended.
+    private static final class PacketSource implements AutoCloseable {
+        private final Iterator<File> files;
+        private FFmpegFrameGrabber grabber;
+        private AVRational outTimeBase;
+        private int outIndex;
+        private long offset;
+        private long end;
+        private AVPacket current;
+
+        PacketSource(List<File> files) throws Exception {
+            this.files = files.iterator();
+            openNext();
+        }
+
+        // The track of the file that's open now. Each of my files has exactly one.
+        AVStream inputStream() {
+            return grabber.getFormatContext().streams(0);
+        }
+
+        void connect(int outIndex, AVRational outTimeBase) throws Exception {
+            this.outIndex = outIndex;
+            this.outTimeBase = outTimeBase;
+            advance();
+        }
+
+        AVPacket current() {
+            return current;
+        }
+
+        boolean isBefore(PacketSource other) {
+            return av_compare_ts(current.dts(), outTimeBase, other.current.dts(), other.outTimeBase) < 0;
+        }
+
+        void advance() throws Exception {
+            while (grabber != null) {
+                AVPacket packet = grabber.grabPacket();
+                if (packet != null) {
+                    av_packet_rescale_ts(packet, inputStream().time_base(), outTimeBase);
+                    packet.pts(packet.pts() + offset);
+                    packet.dts(packet.dts() + offset);
+                    packet.stream_index(outIndex);
+                    packet.pos(-1);
+                    end = Math.max(end, packet.pts() + packet.duration());
+                    current = packet;
+                    return;
+                }
+                openNext();
+                offset = end;
+            }
+            current = null;
+        }
+
+        private void openNext() throws Exception {
+            close();
+            if (files.hasNext()) {
+                grabber = new FFmpegFrameGrabber(files.next());
+                grabber.start();
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (grabber != null) {
+                grabber.close();
+                grabber = null;
+            }
+        }
+    }
+}
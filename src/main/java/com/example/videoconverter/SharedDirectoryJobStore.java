@@ -0,0 +1,389 @@
+package com.example.videoconverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// A job store in a directory that several instances share (converter.jobstore.dir), e.g. a network file system, or
+// just a local directory for two instances on one machine. Every instance writes its own jobs there as they change,
+// so any of them can answer /progress or /download for any job. The outputs have to be reachable by every
+// instance too, so converter.output.dir should point at shared storage as well.
+//
+// The directory holds:
+//   jobs/<jobId>.json    the latest state of each job
+//   jobs/<jobId>.cancel  a cancel request for a job that another instance runs
+//   queue/*.json         conversions waiting for a worker, named so they sort audio first, then oldest first
+//   inputs/              the input files of those conversions
+//   claimed/             where an instance moves a queue entry to claim it
+//
+// Every file is written to a temp name and renamed into place, so a reader never sees half of one, and a queue
+// entry is claimed by renaming it, which only one instance can do.
+@Component
+@ConditionalOnProperty(name = "converter.jobstore.type", havingValue = "shared-dir")
+public class SharedDirectoryJobStore implements JobStore, SharedWorkQueue {
+
+    private static final String JOB_SUFFIX = ".json";
+    private static final String CANCEL_SUFFIX = ".cancel";
+
+    // Job IDs are UUIDs. Anything else that arrives in a URL must never become a path.
+    private static final Pattern JOB_ID = Pattern.compile("[A-Za-z0-9-]+");
+
+    private final ObjectMapper objectMapper;
+    private final Path jobsDir;
+    private final Path queueDir;
+    private final Path inputsDir;
+    private final Path claimedDir;
+
+    // The jobs this instance runs, as live objects. Everyone else's are read from jobs/ when asked for.
+    private final Map<String, ProgressService.JobStatus> localJobs = new ConcurrentHashMap<>();
+
+    // Keeps the queue entries of one instance in order when several are offered in the same millisecond.
+    private final AtomicLong sequence = new AtomicLong();
+
+    // The version of each job file that pollChanges saw last time, so it notices every rewrite. Comparing with the
+    // time of the last poll would miss some on a file system with coarse modification times (NFS, some network
+    // drives); every write renames a new file into place, though, so the file key changes even when the time doesn't.
+    // Only the scheduler thread uses it.
+    private final Map<String, FileVersion> lastSeen = new HashMap<>();
+
+    public SharedDirectoryJobStore(ObjectMapper objectMapper,
+                                   @Value("${converter.jobstore.dir:${java.io.tmpdir}/video-converter-jobs}") String dir)
+            throws IOException {
+        this.objectMapper = objectMapper;
+        Path root = Path.of(dir);
+        this.jobsDir = Files.createDirectories(root.resolve("jobs"));
+        this.queueDir = Files.createDirectories(root.resolve("queue"));
+        this.inputsDir = Files.createDirectories(root.resolve("inputs"));
+        this.claimedDir = Files.createDirectories(root.resolve("claimed"));
+    }
+
+    @Override
+    public ProgressService.JobStatus local(String jobId) {
+        return localJobs.get(jobId);
+    }
+
+    @Override
+    public ProgressService.JobStatus get(String jobId) {
+        ProgressService.JobStatus status = localJobs.get(jobId);
+        if (status != null || !JOB_ID.matcher(jobId).matches()) {
+            return status;
+        }
+        ProgressService.JobStatus.Saved saved = read(jobId);
+        if (saved == null) {
+            return null;
+        }
+        status = ProgressService.JobStatus.restore(saved);
+        // A job that's waiting in the shared queue has nobody to apply its cancel request yet,
+        // so I show it as cancelled straight away.
+        if (Files.exists(cancelFile(jobId))) {
+            status.finish(JobState.CANCELLED);
+        }
+        return status;
+    }
+
+    @Override
+    public void create(String jobId, ProgressService.JobStatus status) {
+        localJobs.put(jobId, status);
+        save(jobId, status);
+    }
+
+    @Override
+    public void save(String jobId, ProgressService.JobStatus status) {
+        // Two threads can update a job at the same time. Locking it while I write means the file can't end up
+        // with the older of the two.
+        synchronized (status) {
+            try {
+                write(jobFile(jobId), status.save());
+            } catch (IOException e) {
+                // The other instances miss this update, but the job itself carries on.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(String jobId) {
+        localJobs.remove(jobId);
+        try {
+            Files.deleteIfExists(cancelFile(jobId));
+            boolean removed = Files.deleteIfExists(jobFile(jobId));
+            if (removed) {
+                discardQueuedConversions(jobId);
+            }
+            return removed;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public Map<String, ProgressService.JobStatus> localJobs() {
+        return localJobs;
+    }
+
+    @Override
+    public Collection<String> jobIds() {
+        return list(jobsDir, JOB_SUFFIX);
+    }
+
+    @Override
+    public boolean requestCancel(String jobId) {
+        ProgressService.JobStatus status = get(jobId);
+        if (status == null || status.getState().isTerminal()) {
+            return false;
+        }
+        try {
+            Files.createFile(cancelFile(jobId));
+        } catch (FileAlreadyExistsException e) {
+            // Someone asked already.
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> pollChanges() {
+        List<String> changed = new ArrayList<>();
+        Set<String> listed = new HashSet<>();
+        try (Stream<Path> files = Files.list(jobsDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(CANCEL_SUFFIX)) {
+                    String jobId = name.substring(0, name.length() - CANCEL_SUFFIX.length());
+                    if (applyCancelRequest(jobId)) {
+                        changed.add(jobId);
+                    }
+                } else if (name.endsWith(JOB_SUFFIX)) {
+                    String jobId = name.substring(0, name.length() - JOB_SUFFIX.length());
+                    listed.add(jobId);
+                    // My own changes have been announced already.
+                    if (localJobs.containsKey(jobId)) {
+                        lastSeen.remove(jobId);
+                        continue;
+                    }
+                    FileVersion version = FileVersion.of(file);
+                    if (version != null && !version.equals(lastSeen.put(jobId, version))) {
+                        changed.add(jobId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Jobs that have been evicted since.
+        lastSeen.keySet().retainAll(listed);
+        return changed;
+    }
+
+    @Override
+    public Optional<SharedWorkQueue> sharedQueue() {
+        return Optional.of(this);
+    }
+
+    @Override
+    public int offer(File input, List<ConversionTarget> targets, int priority) throws IOException {
+        String taskId = UUID.randomUUID().toString();
+        Path sharedInput = inputsDir.resolve(taskId + "-" + input.getName());
+        // A rename if the temp directory is on the same file system, a copy otherwise.
+        Files.move(input.toPath(), sharedInput);
+
+        // Audio (priority 0) sorts before video, then the older entry first.
+        String entryName = String.format("%d-%013d-%06d-%s%s",
+                priority, System.currentTimeMillis(), sequence.incrementAndGet() % 1_000_000, taskId, JOB_SUFFIX);
+        try {
+            write(queueDir.resolve(entryName), new QueuedConversion(sharedInput.toString(), targets, priority));
+        } catch (IOException e) {
+            Files.move(sharedInput, input.toPath());
+            throw e;
+        }
+
+        // From here on the jobs belong to whoever claims the conversion; their latest state is already in jobs/.
+        targets.forEach(target -> localJobs.remove(target.jobId()));
+        return (int) list(queueDir, JOB_SUFFIX).stream()
+                .filter(name -> (name + JOB_SUFFIX).compareTo(entryName) <= 0)
+                .count();
+    }
+
+    @Override
+    public QueuedConversion claimNext() throws IOException {
+        for (String entry : list(queueDir, JOB_SUFFIX).stream().sorted().toList()) {
+            Path claimed = claimedDir.resolve(entry + JOB_SUFFIX);
+            try {
+                Files.move(queueDir.resolve(entry + JOB_SUFFIX), claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                continue; // Another instance was quicker.
+            }
+
+            QueuedConversion conversion;
+            try {
+                conversion = objectMapper.readValue(claimed.toFile(), QueuedConversion.class);
+            } finally {
+                Files.deleteIfExists(claimed);
+            }
+            // A job that has been evicted while it waited has nobody left to convert for, and nothing would ever
+            // evict its output, so its target is dropped here. If that leaves none, the input goes too.
+            List<ConversionTarget> targets = conversion.targets().stream()
+                    .filter(target -> adopt(target.jobId()))
+                    .toList();
+            if (targets.isEmpty()) {
+                Files.deleteIfExists(Path.of(conversion.input()));
+                continue;
+            }
+            return new QueuedConversion(conversion.input(), targets, conversion.priority());
+        }
+        return null;
+    }
+
+    @Override
+    public int queuedCount() {
+        return list(queueDir, JOB_SUFFIX).size();
+    }
+
+    // Makes a job from the shared queue local, including a cancel request that came in while it was waiting.
+    // Returns false if the job has been evicted in the meantime.
+    private boolean adopt(String jobId) {
+        ProgressService.JobStatus.Saved saved = read(jobId);
+        if (saved == null) {
+            return false;
+        }
+        ProgressService.JobStatus status = ProgressService.JobStatus.restore(saved);
+        localJobs.put(jobId, status);
+        if (!applyCancelRequest(jobId)) {
+            save(jobId, status);
+        }
+        return true;
+    }
+
+    // Takes the queue entries of an evicted job out of the queue, along with their inputs. An entry that still has
+    // another job waiting stays; claimNext drops the evicted one from it. The entry is claimed like any other
+    // before it's deleted, so an instance that's claiming it at the same moment gets it whole or not at all.
+    private void discardQueuedConversions(String jobId) throws IOException {
+        for (String entry : list(queueDir, JOB_SUFFIX)) {
+            Path queued = queueDir.resolve(entry + JOB_SUFFIX);
+            QueuedConversion conversion;
+            try {
+                conversion = objectMapper.readValue(queued.toFile(), QueuedConversion.class);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                continue; // Claimed in the meantime.
+            }
+            boolean forThisJob = conversion.targets().stream().anyMatch(target -> target.jobId().equals(jobId));
+            boolean othersWaiting = conversion.targets().stream()
+                    .anyMatch(target -> Files.exists(jobFile(target.jobId())));
+            if (!forThisJob || othersWaiting) {
+                continue;
+            }
+            Path claimed = claimedDir.resolve(entry + JOB_SUFFIX);
+            try {
+                Files.move(queued, claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            Files.deleteIfExists(claimed);
+            Files.deleteIfExists(Path.of(conversion.input()));
+        }
+    }
+
+    // Cancels a local job that another instance asked to cancel. Returns true if that changed the job.
+    private boolean applyCancelRequest(String jobId) {
+        ProgressService.JobStatus status = localJobs.get(jobId);
+        if (status == null || !Files.exists(cancelFile(jobId))) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(cancelFile(jobId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!status.finish(JobState.CANCELLED)) {
+            return false;
+        }
+        save(jobId, status);
+        return true;
+    }
+
+    private ProgressService.JobStatus.Saved read(String jobId) {
+        try {
+            return objectMapper.readValue(jobFile(jobId).toFile(), ProgressService.JobStatus.Saved.class);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void write(Path file, Object value) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            objectMapper.writeValue(temp.toFile(), value);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // The names (without the suffix) of the files in a directory that end with it.
+    private static List<String> list(Path dir, String suffix) {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(suffix))
+                    .map(name -> name.substring(0, name.length() - suffix.length()))
+                    .toList();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return List.of();
+        }
+    }
+
+
+    private Path jobFile(String jobId) {
+        return jobsDir.resolve(jobId + JOB_SUFFIX);
+    }
+
+    private Path cancelFile(String jobId) {
+        return jobsDir.resolve(jobId + CANCEL_SUFFIX);
+    }
+
+    // What identifies one write of a job file. The file key (the inode on Unix) can be null on other systems,
+    // which leaves the time and size.
+    private record FileVersion(Object fileKey, long modified, long size) {
+
+        // Returns null if the file has been deleted since the listing.
+        static FileVersion of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return new FileVersion(attributes.fileKey(), attributes.lastModifiedTime().toMillis(),
+                        attributes.size());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
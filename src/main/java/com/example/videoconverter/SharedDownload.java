@@ -0,0 +1,109 @@
+package com.example.videoconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+// One yt-dlp download that several requests are waiting for, because they asked for the same video (in the same
+// yt-dlp format) while it was already being downloaded. The YoutubeService keeps these by video while they run.
+//
+// The jobs of every participant go in one list, so they all see the download's progress, and yt-dlp is only stopped
+// once every one of them has been cancelled. The downloaded file is reference-counted: each participant takes its
+// own hard link (or copy) to give to the scheduler, which deletes its input once converted, and the last one gets
+// the original file.
+class SharedDownload {
+
+    // The downloaded file and the title yt-dlp printed for it.
+    record Result(File file, String title) {
+    }
+
+    private final ProgressService progressService;
+    private final List<String> jobIds = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    // Guarded by this.
+    private int references;
+    private boolean finished;
+
+    SharedDownload(ProgressService progressService) {
+        this.progressService = progressService;
+    }
+
+    // Adds a participant. This fails once the download has finished, and also once all of its jobs are cancelled,
+    // since yt-dlp is being stopped then; the caller starts a download of its own instead.
+    synchronized boolean join(List<String> participantJobIds) {
+        if (finished || (!jobIds.isEmpty() && allCancelled())) {
+            return false;
+        }
+        jobIds.addAll(participantJobIds);
+        references++;
+        return true;
+    }
+
+    // The jobs of every participant so far. The list keeps growing while the download runs.
+    List<String> jobIds() {
+        return jobIds;
+    }
+
+    boolean allCancelled() {
+        return jobIds.stream().allMatch(progressService::isCancelled);
+    }
+
+    // The participant that runs yt-dlp reports the outcome here: the file, or null if every job was cancelled.
+    void complete(Result downloaded) {
+        synchronized (this) {
+            finished = true;
+        }
+        result.complete(downloaded);
+    }
+
+    void fail(Exception error) {
+        synchronized (this) {
+            finished = true;
+        }
+        result.completeExceptionally(error);
+    }
+
+    // Waits for the download. Returns null if it was stopped because every job was cancelled.
+    Result await() throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    // After await, every participant calls either take or release exactly once.
+    // take returns a file of the participant's own; the last one to take it gets the original.
+    synchronized File take() throws IOException {
+        File original = result.join().file();
+        references--;
+        if (references == 0) {
+            return original;
+        }
+        String name = original.getName();
+        Path copy = original.toPath().resolveSibling(
+                "ytvideo-" + UUID.randomUUID() + name.substring(name.lastIndexOf('.')));
+        ConversionCache.linkOrCopy(original.toPath(), copy);
+        return copy.toFile();
+    }
+
+    // For a participant whose jobs were all cancelled: the original file goes once nobody else needs it.
+    synchronized void release() {
+        references--;
+        Result downloaded = result.isCompletedExceptionally() ? null : result.getNow(null);
+        if (references == 0 && downloaded != null) {
+            try {
+                Files.deleteIfExists(downloaded.file().toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
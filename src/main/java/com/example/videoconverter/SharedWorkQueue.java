@@ -0,0 +1,26 @@
+package com.example.videoconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// The queue of conversions that several instances share, so whichever has a worker free first takes the next one.
+// Only a job store that several instances share has one (see JobStore.sharedQueue); offering and claiming a
+// conversion also moves its jobs from one instance to another.
+public interface SharedWorkQueue {
+
+    // Publishes a conversion that has to wait for a worker, for whichever instance has one free first. The input
+    // is moved into the store, and its jobs stop being local until an instance claims it.
+    // Returns the position in the shared queue.
+    int offer(File input, List<ConversionTarget> targets, int priority) throws IOException;
+
+    // Claims the next waiting conversion, making its jobs local. Returns null if there's none.
+    QueuedConversion claimNext() throws IOException;
+
+    // How many conversions are waiting in the shared queue.
+    int queuedCount();
+
+    // A conversion from the shared queue. Audio ones (priority 0) come before video, then oldest first.
+    record QueuedConversion(String input, List<ConversionTarget> targets, int priority) {
+    }
+}
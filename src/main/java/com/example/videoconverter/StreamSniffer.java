@@ -0,0 +1,78 @@
+package com.example.videoconverter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+// This helper peeks at the start of a stream to decide whether it can be converted while it's still arriving.
+// Most formats (mp3, wav, ogg, webm, ts...) can be read front to back. MP4/MOV files are the exception:
+// if the "moov" index box comes after the media data, the demuxer has to seek to the end of the file first,
+// so those have to be saved to a file before converting.
+public final class StreamSniffer {
+
+    // How far into the stream I look for the moov box. The peeked bytes stay in the stream for the reader.
+    static final int PEEK_BYTES = 64 * 1024;
+
+    // Top-level box types a QuickTime/ISO media file can start with.
+    private static final Set<String> ISO_START_BOXES = Set.of("ftyp", "moov", "mdat", "free", "skip", "wide", "pnot");
+
+    private StreamSniffer() {
+    }
+
+    // Returns true if the stream has to be spooled to a file before it can be converted.
+    // The stream's position is unchanged afterwards, thanks to mark/reset.
+    public static boolean needsSeeking(BufferedInputStream in) throws IOException {
+        in.mark(PEEK_BYTES);
+        byte[] head = new byte[PEEK_BYTES];
+        int length = in.readNBytes(head, 0, PEEK_BYTES);
+        in.reset();
+
+        if (length < 8 || !ISO_START_BOXES.contains(boxType(head, 0))) {
+            return false; // Not an MP4/MOV file, so it can be read front to back.
+        }
+
+        long position = 0;
+        while (position + 8 <= length) {
+            int offset = (int) position;
+            long size = readUInt32(head, offset);
+            String type = boxType(head, offset);
+            int headerSize = 8;
+
+            if (size == 1) {
+                // A 64-bit "largesize" follows the type.
+                if (position + 16 > length) {
+                    break;
+                }
+                size = readUInt64(head, offset + 8);
+                headerSize = 16;
+            }
+
+            if ("moov".equals(type) || "moof".equals(type)) {
+                return false; // The index (or a fragment header) comes first, so streaming works.
+            }
+            if ("mdat".equals(type) || size == 0 || size < headerSize) {
+                return true; // The media data comes before the index, or the box is one I can't walk past.
+            }
+            position += size;
+        }
+
+        // I couldn't find the moov box in the bytes I peeked at, so I play it safe.
+        return true;
+    }
+
+    private static String boxType(byte[] data, int offset) {
+        return new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static long readUInt64(byte[] data, int offset) {
+        return (readUInt32(data, offset) << 32) | readUInt32(data, offset + 4);
+    }
+}
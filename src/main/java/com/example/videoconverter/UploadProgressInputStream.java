@@ -0,0 +1,65 @@
+package com.example.videoconverter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// This wraps an incoming upload and reports how much of it has arrived to the ProgressService.
+// It also stops the upload once it goes over the size limit, since raw request bodies
+// don't go through Spring's multipart size checks.
+public class UploadProgressInputStream extends FilterInputStream {
+
+    private final ProgressService progressService;
+    private final String jobId;
+    private final long expectedBytes;
+    private final long maxBytes;
+    private long bytesRead = 0;
+    private int lastReportedProgress = 0;
+
+    // expectedBytes is the request's Content-Length, or -1 if the client didn't send one.
+    public UploadProgressInputStream(InputStream in, ProgressService progressService, String jobId,
+                                     long expectedBytes, long maxBytes) {
+        super(in);
+        this.progressService = progressService;
+        this.jobId = jobId;
+        this.expectedBytes = expectedBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private void count(int n) throws IOException {
+        bytesRead += n;
+        if (bytesRead > maxBytes) {
+            throw new IOException("Upload is larger than the " + maxBytes + " byte limit");
+        }
+
+        if (expectedBytes > 0) {
+            int progress = (int) (bytesRead * 100 / expectedBytes);
+            if (progress > lastReportedProgress) {
+                lastReportedProgress = progress;
+                progressService.setProgress(jobId, Math.min(progress, 99));
+            }
+        }
+    }
+}
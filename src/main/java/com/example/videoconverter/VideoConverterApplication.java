@@ -2,14 +2,15 @@ package com.example.videoconverter;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 // This is the main entry point for my video converter application.
 // When I run the project, this class is what starts everything up.
+// Conversions run in the background on the ConversionScheduler's own worker threads,
+// which is what keeps the UI and the real-time progress bar responsive.
+// Scheduling is enabled for the ProgressStreamService, which pushes progress changes to the browser.
 @SpringBootApplication
-@EnableAsync // I added this annotation to allow methods to run in the background.
-// It's essential for the real-time progress bar, as it lets the
-// conversion happen on a separate thread without freezing the UI.
+@EnableScheduling
 public class VideoConverterApplication {
 
     // The main method that launches the entire Spring Boot application.
@@ -1,106 +1,118 @@
 package com.example.videoconverter;
 
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Stream;
 
 // This is my controller for handling all YouTube-related requests.
 @RestController
 @RequestMapping("/youtube") // All requests to this controller will start with "/youtube".
 public class YoutubeController {
 
-    private final ConversionService conversionService;
+    private final ConversionScheduler conversionScheduler;
+    private final ConversionCache conversionCache;
     private final ProgressService progressService;
-
-    public YoutubeController(ConversionService conversionService, ProgressService progressService) {
-        this.conversionService = conversionService;
+    private final YoutubeService youtubeService;
+    private final YoutubeMetadataCache metadataCache;
+
+    public YoutubeController(ConversionScheduler conversionScheduler,
+                             ConversionCache conversionCache,
+                             ProgressService progressService,
+                             YoutubeService youtubeService,
+                             YoutubeMetadataCache metadataCache) {
+        this.conversionScheduler = conversionScheduler;
+        this.conversionCache = conversionCache;
         this.progressService = progressService;
+        this.youtubeService = youtubeService;
+        this.metadataCache = metadataCache;
+    }
+
+    // This looks a video up without converting it: its title, length in seconds and the yt-dlp format IDs on offer.
+    // The answer is cached, so a conversion started afterwards gets its title without asking yt-dlp again.
+    @GetMapping("/info")
+    public ResponseEntity<Map<String, Object>> getInfo(@RequestParam("url") String youtubeUrl)
+            throws InterruptedException {
+        YoutubeMetadataCache.VideoInfo info;
+        try {
+            info = metadataCache.lookup(youtubeUrl);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ResponseEntity.badRequest().body(Map.of("error", "Could not look up the video."));
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("videoId", info.videoId());
+        response.put("title", info.title());
+        response.put("duration", info.durationSeconds());
+        response.put("formats", info.formats());
+        return ResponseEntity.ok(response);
     }
 
     // This method handles the POST request to start a new YouTube conversion.
+    // The title lookup, download and conversion all happen in the background (see YoutubeService),
+    // so the browser gets its jobId right away and the progress bar covers the download too.
+    // With "progressive", the output can be followed on /stream/{jobId} while it's being converted.
     @PostMapping("/convert")
-    public Map<String, String> convertYoutube(
+    public ResponseEntity<Map<String, Object>> convertYoutube(
             @RequestParam("url") String youtubeUrl,
-            @RequestParam("format") String format) throws Exception {
-
-        String jobId = UUID.randomUUID().toString();
-        progressService.createJob(jobId);
-
-        String videoTitle = fetchYoutubeTitle(youtubeUrl);
-        progressService.setJobFileName(jobId, videoTitle);
-
-        // This is the temporary directory.
-        Path downloadPath = Path.of(System.getProperty("java.io.tmpdir"));
-        if (!Files.exists(downloadPath)) {
-            Files.createDirectories(downloadPath);
+            @RequestParam("format") List<String> formats,
+            @RequestParam(value = "profile", required = false) String profileName,
+            @RequestParam(value = "progressive", defaultValue = "false") boolean progressive) {
+
+        // Several formats share one download and one decode, but each gets its own jobId.
+        // The format names a muxer and ends up in the output's file name, so only the ones I support get through.
+        formats = ConvertController.normaliseFormats(formats);
+        for (String format : formats) {
+            if (!ConvertController.ALLOWED_FORMATS.contains(format)) {
+                return ResponseEntity.badRequest().body(Map.of("error", "Unsupported format: " + format));
+            }
+        }
+        if (formats.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "No format given."));
         }
 
-        String uniqueId = UUID.randomUUID().toString();
-        String outputTemplate = downloadPath.resolve("ytvideo-" + uniqueId + ".%(ext)s").toString();
-
-        int exitCode = runYtDlp(youtubeUrl, outputTemplate);
-        if (exitCode != 0) {
-            throw new RuntimeException("yt-dlp failed with exit code " + exitCode);
+        EncodingProfile requestedProfile = EncodingProfile.fromName(profileName);
+        if (requestedProfile == null && profileName != null && !profileName.isBlank()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Unsupported profile: " + profileName));
+        }
+        EncodingProfile profile = conversionScheduler.chooseProfile(requestedProfile);
+
+        // The video ID is the canonical identity of a YouTube source, whatever form the URL takes.
+        // If I can't find one, I simply don't cache this job.
+        String videoId = YoutubeVideoId.extract(youtubeUrl);
+
+        List<ConversionTarget> targets = new ArrayList<>();
+        for (String format : formats) {
+            String cacheKey = videoId != null
+                    ? ConversionCache.cacheKey("youtube:" + videoId, format,
+                            ConversionService.encoderSettings(format, profile, progressive))
+                    : null;
+            targets.add(new ConversionTarget(format, UUID.randomUUID().toString(), cacheKey, profile, progressive));
         }
 
-        File downloadedFile = findDownloadedFile(downloadPath, uniqueId);
-        conversionService.convertFile(downloadedFile, format, jobId);
+        // I check the queue before starting anything, so a busy server answers with 429 straight away.
+        // Cached videos don't need a worker, so they're let through either way.
+        if (!targets.stream().allMatch(target -> conversionCache.contains(target.cacheKey()))) {
+            conversionScheduler.ensureCapacity();
+        }
 
-        return Map.of("jobId", jobId);
-    }
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (ConversionTarget target : targets) {
+            progressService.createJob(target.jobId(), ProgressService.SOURCE_YOUTUBE);
 
-    private String fetchYoutubeTitle(String youtubeUrl) {
-        try {
-            // A command to get the video title.
-            ProcessBuilder pb = new ProcessBuilder("yt-dlp", "--get-title", youtubeUrl);
-            Process process = pb.start();
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String title = reader.readLine();
-                process.waitFor();
-
-                if (title != null && !title.isEmpty()) {
-                    // Clean the title to remove any characters that aren't allowed in a filename.
-                    return title.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
-                }
-            }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            // The real title arrives once yt-dlp has looked the video up. Until then the job needs some name.
+            progressService.setJobFileName(target.jobId(), "youtube-video");
+            jobs.add(Map.of("format", target.format(), "jobId", target.jobId()));
         }
-        // If the title can't be fetched, return a generic name.
-        return "youtube-video";
-    }
 
-    private int runYtDlp(String youtubeUrl, String outputTemplate) throws IOException, InterruptedException {
-        // The standard yt-dlp command for downloading video and audio.
-        ProcessBuilder pb = new ProcessBuilder(
-                "yt-dlp",
-                "--no-playlist",
-                "-f", "bv*+ba/b",
-                "-o", outputTemplate,
-                youtubeUrl
-        );
-
-        pb.inheritIO(); // The command's output to the console for easier debugging.
-        Process process = pb.start();
-        return process.waitFor();
-    }
+        youtubeService.startJob(youtubeUrl, targets);
 
-    private File findDownloadedFile(Path downloadPath, String uniqueId) throws IOException {
-        try (Stream<Path> stream = Files.list(downloadPath)) {
-            return stream
-                    .filter(f -> f.getFileName().toString().startsWith("ytvideo-" + uniqueId))
-                    .findFirst()
-                    .orElseThrow(() -> new IOException("Downloaded file not found for ID: " + uniqueId))
-                    .toFile();
-        }
+        return ResponseEntity.ok(Map.of("jobId", targets.get(0).jobId(), "profile", profile.label(),
+                "progressive", progressive, "jobs", jobs));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package com.example.videoconverter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This remembers what yt-dlp told me about a video (its title, length and the formats YouTube offers), keyed by
+// the video ID, so a popular link doesn't cost a yt-dlp process, and its seconds of startup, on every request.
+// Entries expire after converter.youtube.metadata.ttl, since titles change and format lists go stale, and the least
+// recently used ones are dropped once there are more than converter.youtube.metadata.max-entries.
+// Lookups of the same video that overlap share one yt-dlp run.
+@Service
+public class YoutubeMetadataCache {
+
+    // separateStreams is true if some of the formats are video-only or audio-only, so the best quality needs
+    // two of them merged.
+    public record VideoInfo(String videoId, String title, double durationSeconds, List<String> formats,
+                            boolean separateStreams) {
+    }
+
+    private record Entry(VideoInfo info, long fetchedAt) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    // An access-ordered LinkedHashMap is the LRU list, like in the ConversionCache. All access is synchronized.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // The lookups that are running right now, by video ID.
+    private final Map<String, CompletableFuture<VideoInfo>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sharedLookups = new AtomicLong();
+
+    public YoutubeMetadataCache(ObjectMapper objectMapper,
+                                @Value("${converter.youtube.metadata.ttl:6h}") Duration ttl,
+                                @Value("${converter.youtube.metadata.max-entries:1000}") int maxEntries) {
+        this.objectMapper = objectMapper;
+        this.ttlMillis = ttl.toMillis();
+        this.maxEntries = maxEntries;
+    }
+
+    // Returns the video's metadata, asking yt-dlp only if it isn't cached. A URL without a video ID can't be
+    // cached, so it's always looked up.
+    public VideoInfo lookup(String youtubeUrl) throws IOException, InterruptedException {
+        String videoId = YoutubeVideoId.extract(youtubeUrl);
+        if (videoId == null) {
+            return fetch(youtubeUrl);
+        }
+        VideoInfo cached = getIfPresent(videoId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<VideoInfo> mine = new CompletableFuture<>();
+        CompletableFuture<VideoInfo> running = inFlight.putIfAbsent(videoId, mine);
+        if (running != null) {
+            sharedLookups.incrementAndGet();
+            return await(running);
+        }
+        try {
+            // Another lookup may have finished between my cache check and taking its place.
+            VideoInfo info = getIfPresent(videoId);
+            if (info == null) {
+                info = fetch(youtubeUrl);
+                put(videoId, info);
+            }
+            mine.complete(info);
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+        } finally {
+            inFlight.remove(videoId, mine);
+            // Waiters must never be left hanging, e.g. if I was interrupted.
+            mine.completeExceptionally(new IOException("Metadata lookup of " + videoId + " was abandoned"));
+        }
+        return await(mine);
+    }
+
+    // The cached metadata, without starting a lookup. Null if it isn't cached (or has expired).
+    public synchronized VideoInfo getIfPresent(String videoId) {
+        Entry entry = videoId != null ? entries.get(videoId) : null;
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.fetchedAt() > ttlMillis) {
+            entries.remove(videoId);
+            return null;
+        }
+        return entry.info();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        return Map.of(
+                "entries", entries.size(),
+                "maxEntries", maxEntries,
+                "hits", hits.get(),
+                "misses", misses.get(),
+                "sharedLookups", sharedLookups.get()
+        );
+    }
+
+    // The downloads print the same metadata before they start, so they fill the cache too, without a lookup.
+    public void put(VideoInfo info) {
+        if (info.videoId() != null) {
+            put(info.videoId(), info);
+        }
+    }
+
+    private synchronized void put(String videoId, VideoInfo info) {
+        entries.put(videoId, new Entry(info, System.currentTimeMillis()));
+        while (entries.size() > maxEntries) {
+            entries.pollFirstEntry();
+        }
+    }
+
+    private static VideoInfo await(CompletableFuture<VideoInfo> lookup) throws IOException, InterruptedException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Metadata lookup failed", e.getCause());
+        }
+    }
+
+    // --dump-json only looks the video up; nothing is downloaded.
+    private VideoInfo fetch(String youtubeUrl) throws IOException, InterruptedException {
+        JsonNode info = readJson(objectMapper, List.of("yt-dlp", "--dump-json", "--no-playlist", youtubeUrl));
+        if (info == null) {
+            throw new IOException("yt-dlp could not look up " + youtubeUrl);
+        }
+        return parse(info, youtubeUrl);
+    }
+
+    // Reads the fields I keep from yt-dlp's info JSON: the whole of --dump-json, or the part a download prints.
+    static VideoInfo parse(JsonNode info, String youtubeUrl) {
+        List<String> formats = new ArrayList<>();
+        boolean separateStreams = false;
+        for (JsonNode format : info.path("formats")) {
+            String formatId = format.path("format_id").asText(null);
+            if (formatId != null) {
+                formats.add(formatId);
+            }
+            if ("none".equals(format.path("vcodec").asText()) || "none".equals(format.path("acodec").asText())) {
+                separateStreams = true;
+            }
+        }
+        return new VideoInfo(
+                info.path("id").asText(YoutubeVideoId.extract(youtubeUrl)),
+                info.path("title").asText(null),
+                info.path("duration").asDouble(0),
+                List.copyOf(formats),
+                separateStreams);
+    }
+
+    // Runs a yt-dlp command that prints a single JSON document and parses it.
+    // Returns null if yt-dlp fails or prints nothing.
+    static JsonNode readJson(ObjectMapper objectMapper, List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        JsonNode json;
+        int exitCode;
+        try (InputStream in = process.getInputStream()) {
+            json = objectMapper.readTree(in);
+            exitCode = process.waitFor();
+        } catch (IOException | InterruptedException e) {
+            // Only kill yt-dlp when I gave up on it; killing it right after reading could turn a clean exit into a failure.
+            process.destroy();
+            throw e;
+        }
+        return exitCode == 0 && json != null && !json.isMissingNode() ? json : null;
+    }
+}
@@ -0,0 +1,549 @@
+package com.example.videoconverter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+// This service does the slow part of a YouTube job: looking up the title, downloading the video with yt-dlp
+// and handing it to the ConversionScheduler. Each job runs on its own virtual thread, so the web request
+// that started it can return the jobId straight away, and waiting on yt-dlp doesn't tie up a Tomcat thread.
+@Service
+public class YoutubeService {
+
+    // I ask yt-dlp to print these markers, so I can tell the title and progress lines apart from its normal logging.
+    private static final String TITLE_MARKER = "[title] ";
+    private static final String PROGRESS_MARKER = "[progress] ";
+    private static final String INFO_MARKER = "[info-json] ";
+
+    // The part of the video's info that the metadata cache keeps, printed as JSON by the download itself.
+    private static final String INFO_TEMPLATE = "%(.{id,title,duration,formats})j";
+
+    // When downloading to a file, the download is the first half of the progress bar and the conversion the second.
+    private static final int DOWNLOAD_PHASE_END = 50;
+
+    private static final String FALLBACK_TITLE = "youtube-video";
+
+    private final ConversionScheduler conversionScheduler;
+    private final ConversionService conversionService;
+    private final ConversionCache conversionCache;
+    private final ProgressService progressService;
+    private final ConversionMetrics metrics;
+    private final YoutubeMetadataCache metadataCache;
+    private final ObjectMapper objectMapper;
+    private final boolean pipeEnabled;
+    private final String audioFormat;
+
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    // The downloads to a file that are running, by video ID and yt-dlp format, so a request for a video that's
+    // already being downloaded waits for that download instead of starting the same one again.
+    private final Map<String, SharedDownload> sharedDownloads = new ConcurrentHashMap<>();
+
+    // The videos being piped into a converter right now. A pipe feeds one job and can't be shared, so while a video
+    // is being piped, more requests for it go the download-to-file way, where they can share one download.
+    private final Set<String> pipedVideos = ConcurrentHashMap.newKeySet();
+
+    public YoutubeService(ConversionScheduler conversionScheduler,
+                          ConversionService conversionService,
+                          ConversionCache conversionCache,
+                          ProgressService progressService,
+                          ConversionMetrics metrics,
+                          YoutubeMetadataCache metadataCache,
+                          ObjectMapper objectMapper,
+                          @Value("${converter.youtube.pipe-enabled:true}") boolean pipeEnabled,
+                          @Value("${converter.youtube.audio-format:ba/b}") String audioFormat) {
+        this.conversionScheduler = conversionScheduler;
+        this.conversionService = conversionService;
+        this.conversionCache = conversionCache;
+        this.progressService = progressService;
+        this.metrics = metrics;
+        this.metadataCache = metadataCache;
+        this.objectMapper = objectMapper;
+        this.pipeEnabled = pipeEnabled;
+        this.audioFormat = audioFormat;
+    }
+
+    // This starts the job in the background and returns immediately. There's one target per requested format;
+    // they all share one download and one decode.
+    public void startJob(String youtubeUrl, List<ConversionTarget> targets) {
+        virtualThreads.submit(() -> runJob(youtubeUrl, targets, false));
+    }
+
+    // The whole job on the calling thread, up to handing the download to the scheduler. The BatchService calls
+    // this directly from its own threads, so it can limit how many items download at once. With waitForRoom,
+    // a queue that has filled up during the download is waited out instead of failing the jobs.
+    void runJob(String youtubeUrl, List<ConversionTarget> targets, boolean waitForRoom) {
+        List<ConversionTarget> remaining = new ArrayList<>();
+        String videoId = YoutubeVideoId.extract(youtubeUrl);
+        try {
+            // If the video has been looked up recently, its jobs get their real name straight away.
+            YoutubeMetadataCache.VideoInfo knownInfo = metadataCache.getIfPresent(videoId);
+            if (knownInfo != null && knownInfo.title() != null) {
+                setFileNames(targets.stream().map(ConversionTarget::jobId).toList(), cleanTitle(knownInfo.title()));
+            }
+
+            // If this video has already been converted to a format, I only need its title, not the video.
+            String cachedTitle = null;
+            for (ConversionTarget target : targets) {
+                Path cached = conversionCache.lookup(target.cacheKey());
+                if (cached == null) {
+                    remaining.add(target);
+                    continue;
+                }
+                if (cachedTitle == null) {
+                    cachedTitle = lookupTitle(youtubeUrl);
+                }
+                progressService.setJobFileName(target.jobId(), cachedTitle);
+                conversionService.completeFromCachedFile(cached, target.format(), target.jobId());
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+
+            // When a worker is free, I try to pipe yt-dlp's output straight into the converter,
+            // so the audio is being encoded while the rest of it is still downloading. Only audio is piped: the best
+            // video comes as separate video and audio streams that yt-dlp merges on disk, and piping a single-file
+            // format instead would mean a lower quality. Piping feeds a single converter, so only single-format jobs
+            // take this path, and only if the audio isn't already being downloaded for someone else; joining that
+            // download is cheaper still.
+            String fileSelector = formatSelector(remaining);
+            if (remaining.size() == 1) {
+                ConversionTarget target = remaining.get(0);
+                if (pipeEnabled && isPipeable(remaining) && conversionScheduler.hasIdleWorker()
+                        && !sharedDownloads.containsKey(downloadKey(videoId, fileSelector))
+                        && tryPipedConversion(youtubeUrl, videoId, fileSelector, target)) {
+                    return;
+                }
+            }
+
+            List<String> jobIds = remaining.stream().map(ConversionTarget::jobId).toList();
+            long downloadStart = System.nanoTime();
+            File downloadedFile = download(youtubeUrl, videoId, fileSelector, jobIds);
+            if (downloadedFile == null) {
+                return; // Every job was cancelled during the download.
+            }
+            metrics.recordStage(ConversionMetrics.STAGE_DOWNLOAD, ConversionMetrics.formatTag(remaining),
+                    ProgressService.SOURCE_YOUTUBE, downloadStart);
+
+            for (String jobId : jobIds) {
+                progressService.setPhaseRange(jobId, DOWNLOAD_PHASE_END, 100);
+                progressService.setJobState(jobId, JobState.QUEUED);
+            }
+            if (waitForRoom) {
+                conversionScheduler.submitAllWhenRoom(downloadedFile, remaining);
+            } else {
+                conversionScheduler.submitAll(downloadedFile, remaining);
+            }
+
+        } catch (Exception e) {
+            // This covers yt-dlp failures and a queue that filled up during the download.
+            e.printStackTrace();
+            String stage = e instanceof QueueFullException
+                    ? ConversionMetrics.STAGE_QUEUE
+                    : ConversionMetrics.STAGE_DOWNLOAD;
+            metrics.recordFailure(stage, ConversionMetrics.formatTag(remaining), ProgressService.SOURCE_YOUTUBE, e);
+            remaining.forEach(target -> progressService.setProgress(target.jobId(), -1));
+        }
+    }
+
+    // One entry of a playlist, as listed by expandPlaylist.
+    public record PlaylistEntry(String url, String title) {
+    }
+
+    public record Playlist(String title, List<PlaylistEntry> entries) {
+    }
+
+    // This lists the videos of a playlist with a single yt-dlp call. --flat-playlist only reads the playlist
+    // itself, so it takes seconds however long the playlist is, and nothing is downloaded. A link to a single
+    // video comes back as a playlist of one.
+    public Playlist expandPlaylist(String playlistUrl, int maxEntries) throws IOException, InterruptedException {
+        JsonNode info = YoutubeMetadataCache.readJson(objectMapper, List.of(
+                "yt-dlp",
+                "--flat-playlist",
+                "--dump-single-json",
+                "--playlist-end", String.valueOf(maxEntries),
+                playlistUrl));
+        if (info == null) {
+            throw new IOException("yt-dlp could not read the playlist " + playlistUrl);
+        }
+
+        String title = cleanTitle(info.path("title").asText(FALLBACK_TITLE));
+        List<PlaylistEntry> entries = new ArrayList<>();
+        if (!info.has("entries")) {
+            entries.add(new PlaylistEntry(info.path("webpage_url").asText(playlistUrl), title));
+        } else {
+            for (JsonNode entry : info.get("entries")) {
+                // Deleted and private videos are still listed, but without a URL to download.
+                String url = entry.path("url").asText(null);
+                if (url != null && entries.size() < maxEntries) {
+                    entries.add(new PlaylistEntry(url, cleanTitle(entry.path("title").asText(FALLBACK_TITLE))));
+                }
+            }
+        }
+        return new Playlist(title, entries);
+    }
+
+    // This pipes the video into the converter, unless it's being piped for another job already.
+    // It returns false if the video can't be piped, in which case the caller downloads it to a file instead.
+    private boolean tryPipedConversion(String youtubeUrl, String videoId, String formatSelector,
+                                       ConversionTarget target) throws Exception {
+        if (videoId != null && !pipedVideos.add(videoId)) {
+            return false;
+        }
+        CompletableFuture<Void> piped = null;
+        try {
+            piped = pipeConversion(youtubeUrl, formatSelector, target);
+            return piped != null;
+        } finally {
+            if (videoId != null) {
+                if (piped != null) {
+                    piped.whenComplete((ignored, error) -> pipedVideos.remove(videoId));
+                } else {
+                    pipedVideos.remove(videoId);
+                }
+            }
+        }
+    }
+
+    // This starts yt-dlp writing the video to stdout and hands that stream to the scheduler. The returned future
+    // completes once yt-dlp is done; it's null if the video can't be piped.
+    private CompletableFuture<Void> pipeConversion(String youtubeUrl, String formatSelector, ConversionTarget target)
+            throws Exception {
+        String jobId = target.jobId();
+        progressService.setJobState(jobId, JobState.DOWNLOADING);
+        long downloadStart = System.nanoTime();
+        Process process = startYtDlp(youtubeUrl, formatSelector, "-");
+        ProcessInputStream processOutput = new ProcessInputStream(process, "yt-dlp");
+
+        // With "-o -" yt-dlp writes its log, and so my title and progress lines, to stderr.
+        CompletableFuture<String> title = new CompletableFuture<>();
+        virtualThreads.submit(() -> readOutput(process.getErrorStream(), youtubeUrl, List.of(jobId), title, process));
+
+        BufferedInputStream in = new BufferedInputStream(processOutput, StreamSniffer.PEEK_BYTES);
+        boolean needsSeeking;
+        try {
+            needsSeeking = StreamSniffer.needsSeeking(in);
+        } catch (IOException e) {
+            // yt-dlp exited without writing anything, e.g. because there's no single-file format to pipe.
+            processOutput.destroy();
+            return null;
+        }
+
+        // The title is printed before the download starts, so by the time media bytes arrive it's normally there.
+        // The output file is named after it, so I wait for it before converting.
+        progressService.setJobFileName(jobId, awaitTitle(title));
+
+        if (!needsSeeking) {
+            Optional<CompletableFuture<Void>> done = conversionScheduler.trySubmitStream(in, target);
+            if (done.isPresent()) {
+                // If the job stops reading early (cancelled or failed), yt-dlp must not be left running.
+                return done.get().whenComplete((ignored, error) -> processOutput.destroy());
+            }
+        }
+
+        // The container has its index at the end, or the free worker was taken while yt-dlp was starting, so it has
+        // to be a file after all. The bytes I've already received aren't wasted though: I save the rest of the
+        // stream instead of starting a new download.
+        progressService.setPhaseRange(jobId, 0, DOWNLOAD_PHASE_END);
+        File spooledFile = File.createTempFile("ytvideo-" + UUID.randomUUID(), ".media");
+        try (InputStream stream = in) {
+            Files.copy(stream, spooledFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            spooledFile.delete();
+            if (progressService.isCancelled(jobId)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            throw e;
+        }
+        metrics.recordStage(ConversionMetrics.STAGE_DOWNLOAD, target.format(), ProgressService.SOURCE_YOUTUBE,
+                downloadStart);
+        progressService.setPhaseRange(jobId, DOWNLOAD_PHASE_END, 100);
+        progressService.setJobState(jobId, JobState.QUEUED);
+        try {
+            conversionScheduler.submit(spooledFile, target);
+        } catch (QueueFullException e) {
+            spooledFile.delete();
+            throw e;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // This downloads the video to a file for these jobs, or waits for the same download if another request already
+    // started it, and returns a file of their own. Returns null if they were all cancelled in the meantime.
+    private File download(String youtubeUrl, String videoId, String formatSelector, List<String> jobIds)
+            throws Exception {
+        if (videoId == null) {
+            // Without a video ID I can't tell which requests are for the same video, so nothing is shared.
+            SharedDownload.Result result = downloadToFile(youtubeUrl, formatSelector, jobIds);
+            if (result == null) {
+                return null;
+            }
+            setFileNames(jobIds, result.title());
+            return result.file();
+        }
+
+        String key = downloadKey(videoId, formatSelector);
+        SharedDownload created = new SharedDownload(progressService);
+        SharedDownload shared = sharedDownloads.compute(key, (k, running) -> {
+            if (running != null && running.join(jobIds)) {
+                return running;
+            }
+            created.join(jobIds);
+            return created;
+        });
+
+        if (shared == created) {
+            try {
+                created.complete(downloadToFile(youtubeUrl, formatSelector, created.jobIds()));
+            } catch (Exception e) {
+                created.fail(e);
+            } finally {
+                sharedDownloads.remove(key, created);
+            }
+        } else {
+            for (String jobId : jobIds) {
+                progressService.setPhaseRange(jobId, 0, DOWNLOAD_PHASE_END);
+                progressService.setJobState(jobId, JobState.DOWNLOADING);
+            }
+        }
+
+        SharedDownload.Result result = shared.await();
+        if (result == null || allCancelled(jobIds)) {
+            shared.release();
+            return null;
+        }
+        setFileNames(jobIds, result.title());
+        return shared.take();
+    }
+
+    private static String downloadKey(String videoId, String formatSelector) {
+        return videoId + "|" + formatSelector;
+    }
+
+    // The classic path: one yt-dlp run downloads the input to a temp file and prints the title
+    // and its progress along the way. The download is shared by all the given jobs; the list may grow while
+    // it runs, as other requests join. Returns null if they were all cancelled while downloading.
+    private SharedDownload.Result downloadToFile(String youtubeUrl, String formatSelector, List<String> jobIds) throws Exception {
+        // This is the temporary directory.
+        Path downloadPath = Path.of(System.getProperty("java.io.tmpdir"));
+        if (!Files.exists(downloadPath)) {
+            Files.createDirectories(downloadPath);
+        }
+
+        String uniqueId = UUID.randomUUID().toString();
+        String outputTemplate = downloadPath.resolve("ytvideo-" + uniqueId + ".%(ext)s").toString();
+
+        for (String jobId : jobIds) {
+            progressService.setPhaseRange(jobId, 0, DOWNLOAD_PHASE_END);
+            progressService.setJobState(jobId, JobState.DOWNLOADING);
+        }
+        Process process = startYtDlp(youtubeUrl, formatSelector, outputTemplate);
+        CompletableFuture<String> title = new CompletableFuture<>();
+        readOutput(process.getInputStream(), youtubeUrl, jobIds, title, process);
+
+        int exitCode = process.waitFor();
+        if (allCancelled(jobIds)) {
+            deleteDownloadedFiles(downloadPath, uniqueId);
+            return null;
+        }
+        if (exitCode != 0) {
+            deleteDownloadedFiles(downloadPath, uniqueId);
+            throw new IOException("yt-dlp failed with exit code " + exitCode);
+        }
+
+        return new SharedDownload.Result(findDownloadedFile(downloadPath, uniqueId), title.getNow(FALLBACK_TITLE));
+    }
+
+    // This picks what yt-dlp should download. For mp3, wav and ogg only the audio is used, so I ask for the best
+    // audio-only format and skip the video entirely, which is most of the bytes. Video targets get the best
+    // video + audio, merged by yt-dlp. If any of the targets is a video, the video has to be downloaded for all of them.
+    // Piped or not, the same selector is used, so a result in the conversion cache is the same whichever way it went.
+    private String formatSelector(List<ConversionTarget> targets) {
+        if (isAudioOnly(targets)) {
+            return audioFormat;
+        }
+        return "bv*+ba/b";
+    }
+
+    // Only audio targets are piped, and only while their selector picks a single file, which is what yt-dlp can
+    // write to a pipe. Merging two downloads needs them both on disk.
+    private boolean isPipeable(List<ConversionTarget> targets) {
+        return isAudioOnly(targets) && !audioFormat.contains("+");
+    }
+
+    private static boolean isAudioOnly(List<ConversionTarget> targets) {
+        return targets.stream().allMatch(target -> ConversionService.isAudioFormat(target.format()));
+    }
+
+    // A single yt-dlp process does everything: it prints the title and the video's metadata before downloading,
+    // then prints its progress as one parseable line per update. The metadata goes into the metadata cache, so the
+    // next request for the video doesn't need a lookup of its own.
+    // (--print normally implies --simulate and --quiet, hence the extra flags.)
+    private Process startYtDlp(String youtubeUrl, String formatSelector, String output) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                "yt-dlp",
+                "--no-playlist",
+                "-f", formatSelector,
+                "-o", output,
+                "--no-simulate",
+                "--print", "before_dl:" + TITLE_MARKER + "%(title)s",
+                "--print", "before_dl:" + INFO_MARKER + INFO_TEMPLATE,
+                "--progress",
+                "--newline",
+                "--progress-template",
+                "download:" + PROGRESS_MARKER + "%(progress.downloaded_bytes)s/%(progress.total_bytes,progress.total_bytes_estimate)s",
+                youtubeUrl
+        ));
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        if (!"-".equals(output)) {
+            // When downloading to a file, my lines come through stdout, and yt-dlp's warnings and errors go straight
+            // to the console, like every other yt-dlp command here.
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        }
+        return pb.start();
+    }
+
+    // This reads yt-dlp's output line by line. Title and progress lines update the job, everything else is
+    // skipped. It also stops the download once all its jobs are cancelled.
+    private void readOutput(InputStream output, String youtubeUrl, List<String> jobIds,
+                            CompletableFuture<String> title, Process process) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(output))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (allCancelled(jobIds)) {
+                    process.destroyForcibly();
+                    break;
+                }
+
+                if (line.startsWith(TITLE_MARKER)) {
+                    title.complete(cleanTitle(line.substring(TITLE_MARKER.length())));
+                } else if (line.startsWith(PROGRESS_MARKER)) {
+                    String progress = line.substring(PROGRESS_MARKER.length());
+                    jobIds.forEach(jobId -> reportDownloadProgress(jobId, progress));
+                } else if (line.startsWith(INFO_MARKER)) {
+                    rememberInfo(line.substring(INFO_MARKER.length()), youtubeUrl);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            title.complete(FALLBACK_TITLE);
+        }
+    }
+
+    // The download doesn't need the metadata, so if the line can't be read it simply isn't cached.
+    private void rememberInfo(String json, String youtubeUrl) {
+        try {
+            metadataCache.put(YoutubeMetadataCache.parse(objectMapper.readTree(json), youtubeUrl));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The progress lines look like "1234567/9876543". The total can be "NA" if yt-dlp doesn't know it yet.
+    private void reportDownloadProgress(String jobId, String progress) {
+        String[] parts = progress.trim().split("/");
+        if (parts.length != 2) {
+            return;
+        }
+        try {
+            double downloaded = Double.parseDouble(parts[0]);
+            double total = Double.parseDouble(parts[1]);
+            if (total > 0) {
+                progressService.setProgress(jobId, (int) Math.min(99, downloaded * 100 / total));
+            }
+        } catch (NumberFormatException e) {
+            // "NA" values, nothing to report yet.
+        }
+    }
+
+    private boolean allCancelled(List<String> jobIds) {
+        return jobIds.stream().allMatch(progressService::isCancelled);
+    }
+
+    private String awaitTitle(CompletableFuture<String> title) throws InterruptedException {
+        try {
+            return title.get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException | java.util.concurrent.ExecutionException e) {
+            return FALLBACK_TITLE;
+        }
+    }
+
+    // This is only used on a cache hit, where I need the title but not the video itself.
+    // The metadata cache usually has it already, so no yt-dlp process is started at all.
+    private String lookupTitle(String youtubeUrl) {
+        try {
+            String title = metadataCache.lookup(youtubeUrl).title();
+            if (title != null && !title.isEmpty()) {
+                return cleanTitle(title);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // If the title can't be fetched, return a generic name.
+        return FALLBACK_TITLE;
+    }
+
+    private void setFileNames(List<String> jobIds, String title) {
+        jobIds.forEach(jobId -> progressService.setJobFileName(jobId, title));
+    }
+
+    // Clean the title to remove any characters that aren't allowed in a filename.
+    private String cleanTitle(String title) {
+        String cleaned = title.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+        return cleaned.isEmpty() ? FALLBACK_TITLE : cleaned;
+    }
+
+    private File findDownloadedFile(Path downloadPath, String uniqueId) throws IOException {
+        try (Stream<Path> stream = Files.list(downloadPath)) {
+            return stream
+                    .filter(f -> f.getFileName().toString().startsWith("ytvideo-" + uniqueId))
+                    .findFirst()
+                    .orElseThrow(() -> new IOException("Downloaded file not found for ID: " + uniqueId))
+                    .toFile();
+        }
+    }
+
+    // yt-dlp leaves .part files (or separate video/audio files) behind when it's stopped half way.
+    private void deleteDownloadedFiles(Path downloadPath, String uniqueId) {
+        try (Stream<Path> stream = Files.list(downloadPath)) {
+            stream.filter(f -> f.getFileName().toString().startsWith("ytvideo-" + uniqueId))
+                    .forEach(f -> f.toFile().delete());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        virtualThreads.shutdownNow();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.videoconverter;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A small helper for pulling the 11-character video ID out of the different YouTube URL styles,
+// e.g. youtube.com/watch?v=ID, youtu.be/ID, youtube.com/shorts/ID and youtube.com/embed/ID.
+public final class YoutubeVideoId {
+
+    private static final Pattern VIDEO_ID = Pattern.compile(
+            "(?:[?&]v=|youtu\\.be/|/shorts/|/embed/|/live/|/v/)([A-Za-z0-9_-]{11})(?![A-Za-z0-9_-])");
+
+    private YoutubeVideoId() {
+    }
+
+    // Returns the video ID, or null if the URL doesn't look like a single YouTube video.
+    public static String extract(String url) {
+        if (url == null) {
+            return null;
+        }
+        Matcher matcher = VIDEO_ID.matcher(url);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+}
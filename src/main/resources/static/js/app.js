@@ -21,8 +21,8 @@ document.addEventListener('DOMContentLoaded', () => {
     const fileInput = document.getElementById('fileInput');
     const fileNameDisplay = document.getElementById('file-name');
 
-    // This variable will hold my timer for checking the conversion progress.
-    let pollInterval;
+    // This holds the open event stream the server pushes progress updates through.
+    let progressSource;
 
     // This section handles the logic for switching between the "UPLOAD" and "YOUTUBE" views.
     if (showUploadBtn && showYoutubeBtn && uploadSection && youtubeSection) {
@@ -80,8 +80,8 @@ document.addEventListener('DOMContentLoaded', () => {
             showAlert('Please select a file to upload.', 'warning');
             return;
         }
-        const formData = new FormData(fileUploadForm); // Package the form data.
-        startConversionJob('/convert', { method: 'POST', body: formData });
+        const format = document.getElementById('fileFormat').value;
+        startStreamingUpload(fileInput.files[0], format);
     });
 
     // This is what happens when I click the "CONVERT YOUTUBE" button.
@@ -94,25 +94,71 @@ document.addEventListener('DOMContentLoaded', () => {
         startConversionJob(fetchUrl, { method: 'POST' });
     });
 
-    // This function starts the conversion job on my backend.
-    async function startConversionJob(url, options) {
-        // First, I reset the UI to a loading state.
+    // This resets the UI to a loading state before a new job starts.
+    function resetProgressUi() {
         progressContainer.style.display = 'block';
         progressBar.style.width = '0%';
         progressBar.classList.remove('bg-danger');
         resultAlert.style.display = 'none';
-        if(pollInterval) clearInterval(pollInterval); // I clear any old timers just in case.
+        stopWatching(); // I close any old progress stream just in case.
+    }
+
+    // If the server's conversion queue is full it answers with 429, so I tell the user when to try again.
+    async function handleBusyServer(response) {
+        if (response.status !== 429) return false;
+        const busy = await response.json();
+        showAlert(`The server is busy (you'd be #${busy.queuePosition} in the queue). Please try again in about ${busy.retryAfterSeconds} seconds.`, 'warning');
+        progressContainer.style.display = 'none';
+        return true;
+    }
+
+    // This uploads a file in two steps so the server can convert it while it's still arriving.
+    // First I ask for a job ID, then I start watching the progress and send the raw file with PUT.
+    async function startStreamingUpload(file, format) {
+        resetProgressUi();
+
+        try {
+            const params = new URLSearchParams({ format: format, fileName: file.name });
+            const response = await fetch(`/convert/stream?${params}`, { method: 'POST' });
+            if (await handleBusyServer(response)) return;
+            if (!response.ok) throw new Error('Failed to start the conversion job.');
+
+            const data = await response.json();
+            watchProgress(data.jobId);
+
+            const upload = await fetch(`/convert/stream/${data.jobId}`, {
+                method: 'PUT',
+                headers: { 'Content-Type': 'application/octet-stream' },
+                body: file
+            });
+            if (await handleBusyServer(upload)) {
+                stopWatching();
+                return;
+            }
+            if (!upload.ok) throw new Error('Upload failed.');
+        } catch (error) {
+            console.error('Error uploading file:', error);
+            stopWatching();
+            showAlert('Error: Could not upload the file.', 'danger');
+            progressContainer.style.display = 'none';
+        }
+    }
+
+    // This function starts the conversion job on my backend.
+    async function startConversionJob(url, options) {
+        resetProgressUi();
 
         try {
             // I send the request to my backend to start the job.
             const response = await fetch(url, options);
+            if (await handleBusyServer(response)) return;
             if (!response.ok) throw new Error('Failed to start the conversion job.');
 
             // My backend should immediately send back a unique job ID.
             const data = await response.json();
             if (data.jobId) {
-                // If I get a job ID, I start polling for progress.
-                pollProgress(data.jobId);
+                // If I get a job ID, I start listening for progress.
+                watchProgress(data.jobId);
             } else {
                 throw new Error('Server did not return a job ID.');
             }
@@ -123,54 +169,63 @@ document.addEventListener('DOMContentLoaded', () => {
         }
     }
 
-    // This function repeatedly asks my server for the status of a job.
-    function pollProgress(jobId) {
-        // I'm using setInterval to run this code every 2 seconds.
-        pollInterval = setInterval(async () => {
-            try {
-                // I ask my server for the progress of the specific job.
-                // I added a timestamp to the URL to prevent the browser from caching the result.
-                const response = await fetch(`/progress/${jobId}?_=${new Date().getTime()}`);
-                if (response.status === 404) {
-                    clearInterval(pollInterval);
-                    return;
-                }
-                if (!response.ok) throw new Error('Progress check failed.');
-
-                const data = await response.json();
-                const progress = data.progress;
-
-                if (progress < 0) {
-                    // Progress of -1 means my backend had an error.
-                    clearInterval(pollInterval);
-                    showAlert('Conversion failed on the server.', 'danger');
-                    progressBar.classList.add('bg-danger');
-                    progressBar.style.width = '100%';
-                } else if (progress >= 100) {
-                    // The job is done!
-                    clearInterval(pollInterval); // Stop the timer.
-                    progressBar.style.width = '100%';
-                    showAlert('Conversion complete!', 'success');
-
-                    // I trigger the download by redirecting the browser.
-                    window.location.href = `/download/${jobId}`;
-
-                    // After 5 seconds, I hide the progress bar and message.
-                    setTimeout(() => {
-                        progressContainer.style.display = 'none';
-                        resultAlert.style.display = 'none';
-                    }, 5000);
-                } else {
-                    // If the job is still running, I update the progress bar's width.
-                    progressBar.style.width = `${progress}%`;
-                }
-            } catch (error) {
-                console.error('Polling error:', error);
-                clearInterval(pollInterval);
+    // This listens to the server's progress events for a job. The server only sends something when
+    // the job actually changes, and the last event is either "completed" or "failed".
+    function watchProgress(jobId) {
+        stopWatching();
+        progressSource = new EventSource(`/progress/${jobId}/events`);
+
+        progressSource.addEventListener('progress', (event) => {
+            const data = JSON.parse(event.data);
+            // While the job is still running, I update the progress bar's width.
+            progressBar.style.width = `${data.progress}%`;
+        });
+
+        progressSource.addEventListener('completed', (event) => {
+            const data = JSON.parse(event.data);
+            stopWatching();
+            progressBar.style.width = '100%';
+            // If the server could copy the streams without re-encoding, I mention it in the message.
+            const message = data.mode === 'remux'
+                ? 'Conversion complete! (fast copy, no re-encoding needed)'
+                : 'Conversion complete!';
+            showAlert(message, 'success');
+
+            // I trigger the download by redirecting the browser to the URL the server sent.
+            window.location.href = data.downloadUrl;
+
+            // After 5 seconds, I hide the progress bar and message.
+            setTimeout(() => {
+                progressContainer.style.display = 'none';
+                resultAlert.style.display = 'none';
+            }, 5000);
+        });
+
+        progressSource.addEventListener('failed', (event) => {
+            const data = JSON.parse(event.data);
+            stopWatching();
+            showAlert(data.cancelled ? 'Conversion was cancelled.' : 'Conversion failed on the server.', 'danger');
+            progressBar.classList.add('bg-danger');
+            progressBar.style.width = '100%';
+        });
+
+        // EventSource reconnects by itself after a dropped connection. It only gives up for good
+        // if the server refuses the stream, e.g. because the job no longer exists.
+        progressSource.onerror = () => {
+            if (progressSource && progressSource.readyState === EventSource.CLOSED) {
+                console.error('Progress stream closed by the server.');
+                stopWatching();
                 showAlert('Error checking conversion status.', 'danger');
                 progressContainer.style.display = 'none';
             }
-        }, 2000);
+        };
+    }
+
+    function stopWatching() {
+        if (progressSource) {
+            progressSource.close();
+            progressSource = null;
+        }
     }
 
     // A simple function I wrote to show messages to the user.
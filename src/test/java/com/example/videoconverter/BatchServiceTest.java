@@ -0,0 +1,68 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BatchServiceTest {
+
+    private final ProgressService progressService = new ProgressService(new InMemoryJobStore(),
+            new SimpleMeterRegistry(), Duration.ofHours(1), Duration.ofHours(6), 100);
+
+    // The snapshot only reads the jobs, so the services that run the items aren't needed here.
+    private final BatchService batchService = new BatchService(null, null, progressService, null, 2,
+            Duration.ofHours(1));
+
+    @Test
+    void snapshotAggregatesTheItems() {
+        BatchService.Item done = item("done");
+        BatchService.Item converting = item("converting");
+        BatchService.Item failed = item("failed");
+        BatchService.Item queued = item("queued");
+        BatchService.Item evicted = BatchService.Item.forUrl("https://youtu.be/evicted", "evicted");
+
+        progressService.setJobCompleted(done.jobId(), "/tmp/done.mp3");
+        progressService.setJobState(converting.jobId(), JobState.CONVERTING);
+        progressService.setProgress(converting.jobId(), 40);
+        progressService.setProgress(failed.jobId(), -1);
+
+        BatchService.Batch batch = new BatchService.Batch("mix", "mp3", EncodingProfile.FAST,
+                List.of(done, converting, failed, queued, evicted), 2);
+        batch.itemFinished(done);
+        batch.itemFinished(failed);
+
+        Map<String, Object> snapshot = batchService.snapshot("batch-1", batch);
+
+        assertEquals(5, snapshot.get("total"));
+        assertEquals(2, snapshot.get("finished"));
+        // Finished and evicted items count as 100, the converting one as 40 and the queued one as 0.
+        assertEquals((100 + 40 + 100 + 0 + 100) / 5, snapshot.get("progress"));
+        assertEquals(Map.of("done", 1, "converting", 1, "failed", 1, "queued", 1, "expired", 1),
+                snapshot.get("states"));
+        assertEquals("fast", snapshot.get("profile"));
+        assertEquals("/batch/batch-1/zip", snapshot.get("zipUrl"));
+
+        List<?> items = (List<?>) snapshot.get("items");
+        assertEquals(5, items.size());
+        assertEquals(Map.of("jobId", evicted.jobId(), "state", "expired"), items.get(4));
+    }
+
+    @Test
+    void emptyBatchIsComplete() {
+        BatchService.Batch batch = new BatchService.Batch("empty", "mp4", EncodingProfile.BALANCED, List.of(), 2);
+        Map<String, Object> snapshot = batchService.snapshot("batch-2", batch);
+        assertEquals(100, snapshot.get("progress"));
+        assertEquals(0, snapshot.get("total"));
+    }
+
+    private BatchService.Item item(String name) {
+        BatchService.Item item = BatchService.Item.forUrl("https://youtu.be/" + name, name);
+        progressService.createJob(item.jobId(), ProgressService.SOURCE_YOUTUBE);
+        return item;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionServiceTest {
+
+    @TempDir
+    Path dir;
+
+    // The job that gets cancelled once the conversion is a quarter of the way through, if any.
+    private String cancelMidway;
+
+    private ProgressService progressService;
+    private SegmentedTranscoder segmentedTranscoder;
+    private ConversionService conversionService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        progressService = new ProgressService(new InMemoryJobStore(), registry, Duration.ofHours(1),
+                Duration.ofHours(6), 100) {
+            @Override
+            public void setProgress(String jobId, int progress) {
+                super.setProgress(jobId, progress);
+                if (jobId.equals(cancelMidway) && progress >= 25) {
+                    cancelJob(jobId);
+                }
+            }
+        };
+        segmentedTranscoder = new SegmentedTranscoder(progressService, false, Duration.ofMinutes(10), 0);
+        conversionService = new ConversionService(progressService,
+                new ConversionCache(dir.resolve("cache").toString(), 0, false), segmentedTranscoder,
+                new ConversionMetrics(registry), new OutputStore(dir.resolve("outputs").toString()));
+    }
+
+    @AfterEach
+    void shutdown() {
+        segmentedTranscoder.shutdown();
+    }
+
+    @Test
+    void oneDecodeProducesEveryFormat() throws Exception {
+        File clip = TestClips.videoWithAudio(dir, "both.mp4", 4, TestClips.FRAME_RATE);
+        conversionService.convertFile(clip, List.of(target("mp4", "video"), target("mp3", "audio")));
+
+        for (String jobId : List.of("video", "audio")) {
+            ProgressService.JobStatus job = progressService.getJobStatus(jobId);
+            assertEquals(JobState.DONE, job.getState());
+            assertTrue(new File(job.getFilePath()).length() > 0);
+        }
+    }
+
+    @Test
+    void cancellingOneFormatLeavesTheOthersRunning() throws Exception {
+        cancelMidway = "audio";
+        File clip = TestClips.videoWithAudio(dir, "both.mp4", 4, TestClips.FRAME_RATE);
+        conversionService.convertFile(clip, List.of(target("mp4", "video"), target("mp3", "audio")));
+
+        assertEquals(JobState.CANCELLED, progressService.getJobStatus("audio").getState());
+        ProgressService.JobStatus video = progressService.getJobStatus("video");
+        assertEquals(JobState.DONE, video.getState());
+        assertTrue(new File(video.getFilePath()).length() > 0);
+    }
+
+    private ConversionTarget target(String format, String jobId) {
+        progressService.createJob(jobId, ProgressService.SOURCE_UPLOAD);
+        return new ConversionTarget(format, jobId, null, EncodingProfile.FAST, false);
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.videoconverter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConvertControllerTest {
+
+    @Test
+    void formatsAreLowercasedWithoutBlanksOrRepeats() {
+        assertEquals(List.of("mp4", "mp3"), ConvertController.normaliseFormats(List.of(" MP4", "mp3", "", "mp4 ", "Mp3")));
+    }
+
+    @Test
+    void formatOrderIsKept() {
+        assertEquals(List.of("wav", "ogg", "mp4"), ConvertController.normaliseFormats(List.of("wav", "ogg", "mp4")));
+    }
+}
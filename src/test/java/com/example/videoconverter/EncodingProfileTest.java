@@ -0,0 +1,47 @@
+package com.example.videoconverter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EncodingProfileTest {
+
+    @Test
+    void fromNameIgnoresCaseAndSpaces() {
+        assertEquals(EncodingProfile.FAST, EncodingProfile.fromName("fast"));
+        assertEquals(EncodingProfile.BALANCED, EncodingProfile.fromName(" Balanced "));
+        assertEquals(EncodingProfile.ARCHIVAL, EncodingProfile.fromName("ARCHIVAL"));
+    }
+
+    @Test
+    void fromNameReturnsNullForUnknownNames() {
+        assertNull(EncodingProfile.fromName(null));
+        assertNull(EncodingProfile.fromName(""));
+        assertNull(EncodingProfile.fromName("ultrafast"));
+    }
+
+    @Test
+    void fasterStepsTowardsFastAndStopsThere() {
+        assertEquals(EncodingProfile.BALANCED, EncodingProfile.ARCHIVAL.faster());
+        assertEquals(EncodingProfile.FAST, EncodingProfile.BALANCED.faster());
+        assertEquals(EncodingProfile.FAST, EncodingProfile.FAST.faster());
+    }
+
+    @Test
+    void outputSizeScalesDownToEvenDimensions() {
+        assertArrayEquals(new int[] {1280, 720}, EncodingProfile.FAST.outputSize(1920, 1080));
+        assertArrayEquals(new int[] {1920, 1080}, EncodingProfile.BALANCED.outputSize(1920, 1080));
+        assertArrayEquals(new int[] {3840, 2160}, EncodingProfile.ARCHIVAL.outputSize(3840, 2160));
+        // 1001 * 720 / 1000 is 720.72, which becomes the even 720.
+        assertArrayEquals(new int[] {720, 720}, EncodingProfile.FAST.outputSize(1001, 1000));
+    }
+
+    @Test
+    void everyProfileHasItsOwnCacheSettings() {
+        assertNotEquals(EncodingProfile.FAST.settings(), EncodingProfile.BALANCED.settings());
+        assertNotEquals(EncodingProfile.BALANCED.settings(), EncodingProfile.ARCHIVAL.settings());
+    }
+}
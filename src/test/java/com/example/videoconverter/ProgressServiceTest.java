@@ -0,0 +1,114 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgressServiceTest {
+
+    private static final Duration TTL = Duration.ofHours(1);
+    private static final Duration QUEUED_TTL = Duration.ofHours(6);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void finishedJobsAreEvictedWithTheirOutputOnceOlderThanTheTtl() throws IOException {
+        ProgressService service = service(100);
+        File output = Files.writeString(dir.resolve("done.mp3"), "output").toFile();
+        service.createJob("done", ProgressService.SOURCE_UPLOAD);
+        service.setJobCompleted("done", output.getPath());
+        service.createJob("converting", ProgressService.SOURCE_UPLOAD);
+        service.setJobState("converting", JobState.CONVERTING);
+
+        long now = System.currentTimeMillis();
+        service.evictExpiredJobs(now);
+        assertNotNull(service.getJobStatus("done"));
+
+        service.evictExpiredJobs(now + TTL.toMillis() + 1000);
+        assertNull(service.getJobStatus("done"));
+        assertFalse(output.exists());
+        // Running jobs stay, however long they take.
+        assertEquals(JobState.CONVERTING, service.getJobStatus("converting").getState());
+    }
+
+    @Test
+    void jobThatNeverLeavesTheQueueIsCancelledAndThenEvicted() {
+        ProgressService service = service(100);
+        service.createJob("queued", ProgressService.SOURCE_UPLOAD);
+        service.createJob("converting", ProgressService.SOURCE_UPLOAD);
+        service.setJobState("converting", JobState.CONVERTING);
+
+        long now = System.currentTimeMillis();
+        service.evictExpiredJobs(now + TTL.toMillis() + 1000);
+        assertEquals(JobState.QUEUED, service.getJobStatus("queued").getState());
+
+        long pastQueuedTtl = now + QUEUED_TTL.toMillis() + 1000;
+        service.evictExpiredJobs(pastQueuedTtl);
+        assertEquals(JobState.CANCELLED, service.getJobStatus("queued").getState());
+        assertEquals(JobState.CONVERTING, service.getJobStatus("converting").getState());
+
+        // Cancelling it counts as its last update, so it's evicted one TTL after that.
+        service.evictExpiredJobs(System.currentTimeMillis() + TTL.toMillis() + 1000);
+        assertNull(service.getJobStatus("queued"));
+        assertEquals(JobState.CONVERTING, service.getJobStatus("converting").getState());
+    }
+
+    @Test
+    void oldestFinishedJobGoesFirstWhenThereAreTooMany() {
+        ProgressService service = service(2);
+        service.createJob("finished", ProgressService.SOURCE_UPLOAD);
+        service.setProgress("finished", -1);
+        service.createJob("running", ProgressService.SOURCE_UPLOAD);
+        service.createJob("new", ProgressService.SOURCE_UPLOAD);
+
+        assertNull(service.getJobStatus("finished"));
+        assertNotNull(service.getJobStatus("running"));
+        assertNotNull(service.getJobStatus("new"));
+    }
+
+    @Test
+    void finishedJobIgnoresLateUpdates() {
+        ProgressService service = service(100);
+        service.createJob("job", ProgressService.SOURCE_UPLOAD);
+        service.setProgress("job", 40);
+        assertTrue(service.cancelJob("job"));
+
+        service.setProgress("job", 80);
+        service.setJobState("job", JobState.CONVERTING);
+        service.setJobCompleted("job", dir.resolve("late.mp3").toString());
+
+        assertEquals(JobState.CANCELLED, service.getJobStatus("job").getState());
+        assertEquals(-1, service.getJobStatus("job").getProgress());
+        assertFalse(service.cancelJob("job"));
+    }
+
+    @Test
+    void outputOfAJobThatEndedMeanwhileIsDeleted() throws IOException {
+        ProgressService service = service(100);
+        File output = Files.writeString(dir.resolve("late.mp4"), "output").toFile();
+        service.createJob("job", ProgressService.SOURCE_UPLOAD);
+        assertTrue(service.cancelJob("job"));
+
+        assertFalse(service.setJobCompleted("job", output.getPath()));
+        assertFalse(output.exists());
+        assertNull(service.getJobStatus("job").getFilePath());
+        assertEquals(0, service.getRetainedBytes());
+    }
+
+    private static ProgressService service(int maxEntries) {
+        return new ProgressService(new InMemoryJobStore(), new SimpleMeterRegistry(), TTL, QUEUED_TTL, maxEntries);
+    }
+}
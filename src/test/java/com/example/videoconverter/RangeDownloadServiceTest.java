@@ -0,0 +1,147 @@
+package com.example.videoconverter;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RangeDownloadServiceTest {
+
+    private static final String JOB_ID = "0b5e8d1c-6a53-4a0e-9d65-5b6f1f0b2c11";
+    private static final long FINISHED_AT = 1_700_000_000_000L;
+
+    private final RangeDownloadService service = new RangeDownloadService();
+    private final byte[] content = new byte[100];
+
+    @TempDir
+    Path dir;
+    private Path file;
+
+    @BeforeEach
+    void writeFile() throws IOException {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        file = Files.write(dir.resolve("output.mp4"), content);
+    }
+
+    @Test
+    void wholeFileWithoutRange() throws IOException {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("GET", "/download"));
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(100, response.getContentLengthLong());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void closedRange() throws IOException {
+        MockHttpServletResponse response = send(range("bytes=10-19"));
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 10-19/100", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.getContentAsByteArray());
+    }
+
+    @Test
+    void openAndSuffixRanges() throws IOException {
+        MockHttpServletResponse open = send(range("bytes=90-"));
+        assertEquals("bytes 90-99/100", open.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 90, 100), open.getContentAsByteArray());
+
+        MockHttpServletResponse suffix = send(range("bytes=-5"));
+        assertEquals("bytes 95-99/100", suffix.getHeader(HttpHeaders.CONTENT_RANGE));
+
+        MockHttpServletResponse pastTheEnd = send(range("bytes=50-1000"));
+        assertEquals("bytes 50-99/100", pastTheEnd.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void rangeOutsideTheFileIsNotSatisfiable() throws IOException {
+        MockHttpServletResponse response = send(range("bytes=100-"));
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */100", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        assertEquals(416, send(range("bytes=-0")).getStatus());
+    }
+
+    @Test
+    void rangesIDontHandleGetTheWholeFile() throws IOException {
+        for (String header : new String[] {"bytes=0-1,5-6", "items=0-5", "bytes=5-1", "bytes=a-b"}) {
+            MockHttpServletResponse response = send(range(header));
+            assertEquals(200, response.getStatus(), header);
+            assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE), header);
+            assertEquals(100, response.getContentAsByteArray().length, header);
+        }
+    }
+
+    @Test
+    void ifRangeOnlyHonoursTheRangeWhileTheFileIsUnchanged() throws IOException {
+        String etag = send(new MockHttpServletRequest("HEAD", "/download")).getHeader(HttpHeaders.ETAG);
+
+        MockHttpServletRequest same = range("bytes=10-19");
+        same.addHeader(HttpHeaders.IF_RANGE, etag);
+        assertEquals(206, send(same).getStatus());
+
+        MockHttpServletRequest sameDate = range("bytes=10-19");
+        sameDate.addHeader(HttpHeaders.IF_RANGE, FINISHED_AT);
+        assertEquals(206, send(sameDate).getStatus());
+
+        MockHttpServletRequest other = range("bytes=10-19");
+        other.addHeader(HttpHeaders.IF_RANGE, "\"something-else\"");
+        assertEquals(200, send(other).getStatus());
+    }
+
+    @Test
+    void validatorsComeFromTheJobNotTheFile() throws IOException {
+        MockHttpServletResponse first = send(new MockHttpServletRequest("GET", "/download"));
+        // The result cache shares the output's inode, so its modification time can change under a finished job.
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        MockHttpServletResponse second = send(new MockHttpServletRequest("GET", "/download"));
+
+        assertEquals(first.getHeader(HttpHeaders.ETAG), second.getHeader(HttpHeaders.ETAG));
+        assertEquals(FINISHED_AT, second.getDateHeader(HttpHeaders.LAST_MODIFIED));
+    }
+
+    @Test
+    void ifNoneMatchAnswersNotModified() throws IOException {
+        String etag = send(new MockHttpServletRequest("HEAD", "/download")).getHeader(HttpHeaders.ETAG);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/download");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        MockHttpServletResponse response = send(request);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void headSendsNoBody() throws IOException {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("HEAD", "/download"));
+        assertEquals(200, response.getStatus());
+        assertEquals(100, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    private static MockHttpServletRequest range(String header) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/download");
+        request.addHeader(HttpHeaders.RANGE, header);
+        return request;
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        service.send(request, response, file, "video.mp4", JOB_ID, FINISHED_AT, FINISHED_AT + 3_600_000);
+        return response;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.videoconverter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RewindableInputStreamTest {
+
+    private static final byte[] DATA = new byte[10_000];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) i;
+        }
+    }
+
+    @Test
+    void resetReplaysFromTheMark() throws IOException {
+        RewindableInputStream in = new RewindableInputStream(new ByteArrayInputStream(DATA), 1024);
+        in.readNBytes(100);
+        in.mark(0);
+        byte[] first = in.readNBytes(500);
+        in.reset();
+        assertArrayEquals(first, in.readNBytes(500));
+        assertArrayEquals(Arrays.copyOfRange(DATA, 600, 700), in.readNBytes(100));
+    }
+
+    @Test
+    void resetThenSkipSeeksFromTheMark() throws IOException {
+        // This is how JavaCV seeks: reset() back to the mark at 0, then skip() to the target offset.
+        RewindableInputStream in = new RewindableInputStream(new ByteArrayInputStream(DATA), 1024);
+        in.mark(0);
+        in.readNBytes(800);
+        in.reset();
+        assertEquals(300, in.skip(300));
+        assertEquals(DATA[300] & 0xff, in.read());
+
+        in.reset();
+        assertEquals(2000, in.skip(2000));
+        assertEquals(DATA[2000] & 0xff, in.read());
+    }
+
+    @Test
+    void sizeCheckIsRefusedWithoutMovingTheReader() throws IOException {
+        RewindableInputStream in = new RewindableInputStream(new ByteArrayInputStream(DATA), 1024);
+        in.mark(0);
+        in.readNBytes(400);
+        in.reset();
+        assertThrows(IOException.class, () -> in.skip(Long.MAX_VALUE));
+        assertEquals(DATA[400] & 0xff, in.read());
+    }
+
+    @Test
+    void seekingBackPastTheRingBufferFails() throws IOException {
+        RewindableInputStream in = new RewindableInputStream(new ByteArrayInputStream(DATA), 1024);
+        in.mark(0);
+        in.readNBytes(5000);
+        in.reset();
+        assertThrows(IOException.class, () -> in.skip(100));
+
+        in.reset();
+        assertThrows(IOException.class, in::read);
+    }
+
+    @Test
+    void skipPastTheEndStopsThere() throws IOException {
+        RewindableInputStream in = new RewindableInputStream(new ByteArrayInputStream(DATA), 1024);
+        assertEquals(DATA.length, in.skip(DATA.length + 500));
+        assertEquals(-1, in.read());
+    }
+}
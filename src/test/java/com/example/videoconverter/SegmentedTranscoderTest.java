@@ -0,0 +1,149 @@
+package com.example.videoconverter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedTranscoderTest {
+
+    @TempDir
+    Path dir;
+
+    // Planning only looks at the grabber, so it doesn't need the ProgressService.
+    private final SegmentedTranscoder transcoder = new SegmentedTranscoder(null, true, Duration.ofSeconds(1), 4);
+
+    @AfterEach
+    void shutdown() {
+        transcoder.shutdown();
+    }
+
+    @Test
+    void cutsAtTheKeyframesClosestToEqualParts() throws Exception {
+        // A keyframe every second, so each quarter of the 8 seconds starts exactly on one.
+        File clip = TestClips.video(dir, "keyframes.mp4", 8, TestClips.FRAME_RATE);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertEquals(List.of(0L, 2_000_000L, 4_000_000L, 6_000_000L, Long.MAX_VALUE),
+                    transcoder.planSegments(grabber, "mp4"));
+        }
+    }
+
+    @Test
+    void notWorthSplitting() throws Exception {
+        File clip = TestClips.video(dir, "keyframes.mp4", 8, TestClips.FRAME_RATE);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertNull(transcoder.planSegments(grabber, "mp3"));
+        }
+
+        SegmentedTranscoder longOnly = new SegmentedTranscoder(null, true, Duration.ofMinutes(10), 4);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertNull(longOnly.planSegments(grabber, "mp4"));
+        } finally {
+            longOnly.shutdown();
+        }
+    }
+
+    @Test
+    void onlySplitsAcrossIdleWorkers() throws Exception {
+        File clip = TestClips.video(dir, "keyframes.mp4", 8, TestClips.FRAME_RATE);
+
+        // One idle worker next to the job's own: two halves, not four quarters.
+        transcoder.useIdleWorkersOf(() -> 1);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertEquals(List.of(0L, 4_000_000L, Long.MAX_VALUE), transcoder.planSegments(grabber, "mp4"));
+        }
+
+        transcoder.useIdleWorkersOf(() -> 0);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertNull(transcoder.planSegments(grabber, "mp4"));
+        }
+    }
+
+    @Test
+    void clipWithOneKeyframeIsNotSplitAndIsStillReadFromTheStart() throws Exception {
+        File clip = TestClips.video(dir, "one-keyframe.mp4", 8, 1000);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            assertNull(transcoder.planSegments(grabber, "mp4"));
+            // The caller goes on to transcode with the same grabber, so it must not have lost any frames.
+            int frames = 0;
+            while (grabber.grabImage() != null) {
+                frames++;
+            }
+            assertEquals(8 * TestClips.FRAME_RATE, frames);
+        }
+    }
+
+    @Test
+    void segmentsAreJoinedIntoOneContinuousVideo() throws Exception {
+        ProgressService progressService = new ProgressService(new InMemoryJobStore(), new SimpleMeterRegistry(),
+                Duration.ofHours(1), Duration.ofHours(6), 100);
+        progressService.createJob("job", ProgressService.SOURCE_UPLOAD);
+        SegmentedTranscoder parallel = new SegmentedTranscoder(progressService, true, Duration.ofSeconds(1), 4);
+        File clip = TestClips.videoWithAudio(dir, "long.mp4", 8, TestClips.FRAME_RATE);
+        File output = dir.resolve("joined.mp4").toFile();
+        long inputDuration;
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(clip)) {
+            grabber.start();
+            inputDuration = grabber.getLengthInTime();
+            List<Long> boundaries = parallel.planSegments(grabber, "mp4");
+            assertEquals(5, boundaries.size());
+            parallel.transcode(grabber, clip, boundaries, output, "job", EncodingProfile.FAST);
+        } finally {
+            parallel.shutdown();
+        }
+
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(output)) {
+            grabber.start();
+            assertTrue(grabber.hasAudio());
+            // The AAC encoder pads the audio track a little at both ends, so allow for a few of its frames.
+            assertEquals(inputDuration, grabber.getLengthInTime(), 100_000);
+
+            int frames = 0;
+            long lastTimestamp = -1;
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null) {
+                assertTrue(frame.timestamp > lastTimestamp, "frame " + frames + " goes back in time");
+                lastTimestamp = frame.timestamp;
+                frames++;
+            }
+            assertEquals(8 * TestClips.FRAME_RATE, frames);
+        }
+
+        // Every segment is shifted to start where the previous one ended, so the packets of each stream
+        // must keep moving forward across the cuts.
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(output)) {
+            grabber.start();
+            Map<Integer, Long> lastDts = new HashMap<>();
+            AVPacket packet;
+            while ((packet = grabber.grabPacket()) != null) {
+                long dts = packet.dts();
+                Long previous = lastDts.put(packet.stream_index(), dts);
+                assertTrue(previous == null || dts > previous,
+                        "stream " + packet.stream_index() + " goes from " + previous + " to " + dts);
+                av_packet_unref(packet);
+            }
+            assertEquals(2, lastDts.size());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.videoconverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedDirectoryJobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void pollChangesSeesEveryRewriteEvenWithCoarseModificationTimes() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        SharedDirectoryJobStore running = new SharedDirectoryJobStore(objectMapper, dir.toString());
+        SharedDirectoryJobStore watching = new SharedDirectoryJobStore(objectMapper, dir.toString());
+
+        ProgressService.JobStatus status = new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD);
+        running.create("job-1", status);
+        assertEquals(List.of("job-1"), watching.pollChanges());
+        assertTrue(watching.pollChanges().isEmpty());
+
+        // A file system that only keeps whole seconds can give the next write the same time as the last one.
+        Path file = dir.resolve("jobs").resolve("job-1.json");
+        FileTime before = Files.getLastModifiedTime(file);
+        status.advanceProgress(50);
+        running.save("job-1", status);
+        Files.setLastModifiedTime(file, before);
+
+        assertEquals(List.of("job-1"), watching.pollChanges());
+        assertEquals(50, watching.get("job-1").getProgress());
+    }
+
+    @Test
+    void ownJobsAreNotReportedAsChanges() throws IOException {
+        SharedDirectoryJobStore store = new SharedDirectoryJobStore(new ObjectMapper(), dir.toString());
+        store.create("job-1", new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD));
+        assertTrue(store.pollChanges().isEmpty());
+    }
+
+    @Test
+    void evictedWhileQueuedLeavesNothingInTheQueue() throws IOException {
+        SharedDirectoryJobStore store = new SharedDirectoryJobStore(new ObjectMapper(), dir.toString());
+        store.create("job-1", new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD));
+        store.offer(input(), List.of(target("job-1")), 1);
+
+        assertTrue(store.remove("job-1"));
+
+        assertEquals(0, store.queuedCount());
+        assertTrue(isEmpty(dir.resolve("inputs")));
+        assertNull(store.claimNext());
+    }
+
+    @Test
+    void claimNextDropsTargetsWhoseJobIsGone() throws IOException {
+        SharedDirectoryJobStore store = new SharedDirectoryJobStore(new ObjectMapper(), dir.toString());
+        store.create("job-1", new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD));
+        store.create("job-2", new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD));
+        store.offer(input(), List.of(target("job-1"), target("job-2")), 1);
+
+        // The other job is still waiting, so the conversion stays queued for it.
+        assertTrue(store.remove("job-1"));
+        assertEquals(1, store.queuedCount());
+
+        SharedWorkQueue.QueuedConversion claimed = store.claimNext();
+        assertEquals(List.of("job-2"), claimed.targets().stream().map(ConversionTarget::jobId).toList());
+        assertTrue(Files.exists(Path.of(claimed.input())));
+    }
+
+    @Test
+    void claimNextDeletesTheInputWhenEveryJobIsGone() throws IOException {
+        SharedDirectoryJobStore offering = new SharedDirectoryJobStore(new ObjectMapper(), dir.toString());
+        offering.create("job-1", new ProgressService.JobStatus(ProgressService.SOURCE_UPLOAD));
+        offering.offer(input(), List.of(target("job-1")), 1);
+
+        // The job file can also disappear without going through remove, e.g. deleted by hand.
+        Files.delete(dir.resolve("jobs").resolve("job-1.json"));
+
+        SharedDirectoryJobStore claiming = new SharedDirectoryJobStore(new ObjectMapper(), dir.toString());
+        assertNull(claiming.claimNext());
+        assertTrue(isEmpty(dir.resolve("inputs")));
+        assertFalse(claiming.localJobs().containsKey("job-1"));
+    }
+
+    private File input() throws IOException {
+        return Files.writeString(Files.createTempFile(dir, "input", ".mp4"), "not really a video").toFile();
+    }
+
+    private static ConversionTarget target(String jobId) {
+        return new ConversionTarget("mp4", jobId, null, EncodingProfile.BALANCED, false);
+    }
+
+    private static boolean isEmpty(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.findAny().isEmpty();
+        }
+    }
+}
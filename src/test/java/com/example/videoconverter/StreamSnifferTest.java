@@ -0,0 +1,94 @@
+package com.example.videoconverter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamSnifferTest {
+
+    @Test
+    void mp4WithMoovFirstCanBeStreamed() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("moov", 100), box("mdat", 1000));
+        assertFalse(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void mp4WithMdatBeforeMoovNeedsSeeking() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("mdat", 1000), box("moov", 100));
+        assertTrue(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void fragmentedMp4CanBeStreamed() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("moof", 100), box("mdat", 1000));
+        assertFalse(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void largesizeBoxIsWalkedPast() throws IOException {
+        // A "free" box with a 64-bit size, then the moov.
+        ByteBuffer large = ByteBuffer.allocate(32);
+        large.putInt(1).put(type("free")).putLong(32);
+        byte[] file = boxes(box("ftyp", 16), large.array(), box("moov", 100));
+        assertFalse(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void boxRunningToTheEndOfTheFileNeedsSeeking() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("free", 0));
+        assertTrue(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void moovBeyondThePeekedBytesNeedsSeeking() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("free", StreamSniffer.PEEK_BYTES * 2), box("moov", 100));
+        assertTrue(StreamSniffer.needsSeeking(stream(file)));
+    }
+
+    @Test
+    void otherContainersCanBeStreamed() throws IOException {
+        byte[] webm = {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertFalse(StreamSniffer.needsSeeking(stream(webm)));
+        assertFalse(StreamSniffer.needsSeeking(stream(new byte[3])));
+    }
+
+    @Test
+    void peekedBytesStayInTheStream() throws IOException {
+        byte[] file = boxes(box("ftyp", 16), box("moov", 100), box("mdat", 1000));
+        BufferedInputStream in = stream(file);
+        StreamSniffer.needsSeeking(in);
+        assertArrayEquals(file, in.readAllBytes());
+    }
+
+    private static BufferedInputStream stream(byte[] data) {
+        return new BufferedInputStream(new ByteArrayInputStream(data), StreamSniffer.PEEK_BYTES);
+    }
+
+    // A box with a 32-bit size; its body is zeros. A size of 0 means "to the end of the file".
+    private static byte[] box(String type, int size) {
+        ByteBuffer box = ByteBuffer.allocate(Math.max(size, 8));
+        box.putInt(size).put(type(type));
+        return box.array();
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] boxes(byte[]... boxes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] box : boxes) {
+            out.writeBytes(box);
+        }
+        return out.toByteArray();
+    }
+}
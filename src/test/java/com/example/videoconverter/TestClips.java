@@ -0,0 +1,51 @@
+package com.example.videoconverter;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.nio.ShortBuffer;
+import java.nio.file.Path;
+
+// Small mp4 clips that the tests generate for themselves: a black 160x120 picture at 25 fps, MPEG-4 video
+// with a keyframe every gopSize frames, and optionally a silent mono audio track.
+final class TestClips {
+
+    static final int FRAME_RATE = 25;
+    static final int SAMPLE_RATE = 44_100;
+
+    private TestClips() {
+    }
+
+    static File video(Path dir, String name, int seconds, int gopSize) throws Exception {
+        return clip(dir, name, seconds, gopSize, false);
+    }
+
+    static File videoWithAudio(Path dir, String name, int seconds, int gopSize) throws Exception {
+        return clip(dir, name, seconds, gopSize, true);
+    }
+
+    private static File clip(Path dir, String name, int seconds, int gopSize, boolean audio) throws Exception {
+        File file = dir.resolve(name).toFile();
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, 160, 120, audio ? 1 : 0)) {
+            recorder.setFormat("mp4");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setFrameRate(FRAME_RATE);
+            recorder.setGopSize(gopSize);
+            if (audio) {
+                recorder.setSampleRate(SAMPLE_RATE);
+            }
+            recorder.start();
+            Frame picture = new Frame(160, 120, Frame.DEPTH_UBYTE, 3);
+            ShortBuffer silence = ShortBuffer.allocate(SAMPLE_RATE / FRAME_RATE);
+            for (int i = 0; i < seconds * FRAME_RATE; i++) {
+                recorder.record(picture);
+                if (audio) {
+                    recorder.recordSamples(SAMPLE_RATE, 1, silence.rewind());
+                }
+            }
+        }
+        return file;
+    }
+}